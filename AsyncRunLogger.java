@@ -0,0 +1,431 @@
+package wiki;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A run log that never makes the caller wait for the disk. Messages go into
+ * a fixed-size ring buffer, and a background thread writes them to the log
+ * file in batches, flushing at least once a second. If the buffer ever fills
+ * up, new messages are dropped and the number lost is noted in the log.
+ *
+ * When the log file grows past its size limit, or has been open longer than
+ * its age limit, it is closed, renamed with a part number and compressed, and
+ * a new file is started under the original name.
+ *
+ * The log is flushed and closed when the JVM exits, including through
+ * System.exit().
+ */
+public class AsyncRunLogger implements RunLogger, Closeable {
+	public static final int DEFAULT_CAPACITY = 65536;
+	public static final long DEFAULT_MAX_BYTES = 10L * 1024 * 1024;
+	public static final long DEFAULT_MAX_AGE = 24L * 60 * 60 * 1000;
+	public static final long FLUSH_INTERVAL = 1000;
+	public static final long CLOSE_TIMEOUT = 10000;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final File file;
+	private final long maxBytes;
+	private final long maxAge;
+	private final ArrayBlockingQueue<Record> buffer;
+	private final AtomicLong dropped = new AtomicLong();
+	private final PrintStream fallback = System.err;
+	private final Thread writer;
+	private final Thread shutdownHook;
+	private volatile boolean closed = false;
+
+	// only touched by the writer thread
+	private final SimpleDateFormat format = new SimpleDateFormat(
+			"yyyy-MM-dd HH:mm:ss.SSS");
+	private Writer out;
+	private long written;
+	private long openedAt;
+	private int part = 0;
+
+	/**
+	 * Opens a log with the default limits
+	 *
+	 * @param file
+	 *            the log file, appended to if it exists
+	 * @throws IOException
+	 *             if the file cannot be opened
+	 */
+	public AsyncRunLogger(File file) throws IOException {
+		this(file, DEFAULT_CAPACITY, DEFAULT_MAX_BYTES, DEFAULT_MAX_AGE);
+	}
+
+	/**
+	 * Opens a log
+	 *
+	 * @param file
+	 *            the log file, appended to if it exists
+	 * @param capacity
+	 *            how many messages can wait to be written
+	 * @param maxBytes
+	 *            the size at which the file is rotated
+	 * @param maxAge
+	 *            how long, in milliseconds, a file is written to before it is
+	 *            rotated
+	 * @throws IOException
+	 *             if the file cannot be opened
+	 */
+	public AsyncRunLogger(File file, int capacity, long maxBytes, long maxAge)
+			throws IOException {
+		this.file = file.getAbsoluteFile();
+		this.maxBytes = maxBytes;
+		this.maxAge = maxAge;
+		this.buffer = new ArrayBlockingQueue<Record>(capacity);
+		open();
+
+		writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				drain();
+			}
+		}, "Run log writer");
+		writer.setDaemon(true);
+		writer.start();
+
+		shutdownHook = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				close();
+			}
+		}, "Run log shutdown");
+		Runtime.getRuntime().addShutdownHook(shutdownHook);
+	}
+
+	@Override
+	public void info(String message) {
+		offer(new Record(Record.MESSAGE, "INFO", message));
+	}
+
+	@Override
+	public void warning(String message) {
+		offer(new Record(Record.MESSAGE, "WARNING", message));
+	}
+
+	@Override
+	public void error(String message, Throwable t) {
+		if (t != null) {
+			StringWriter trace = new StringWriter();
+			t.printStackTrace(new PrintWriter(trace));
+			message += "\n" + trace.toString().trim();
+		}
+		offer(new Record(Record.MESSAGE, "ERROR", message));
+	}
+
+	@Override
+	public void flush() {
+		Record marker = new Record(Record.FLUSH, null, null);
+		if (!closed && buffer.offer(marker)) {
+			await(marker);
+		}
+	}
+
+	/**
+	 * Compresses the logs of earlier runs: the uncompressed files in the same
+	 * directory as this log whose names start with the given prefix. This is
+	 * done by the writer thread, so it doesn't hold up the caller.
+	 *
+	 * @param prefix
+	 *            the start of the log file names
+	 */
+	public void compressOldLogs(final String prefix) {
+		Record task = new Record(Record.TASK, null, null);
+		task.task = new Runnable() {
+			@Override
+			public void run() {
+				File[] files = file.getParentFile().listFiles();
+				if (files == null) {
+					return;
+				}
+				for (File old : files) {
+					if (old.getName().startsWith(prefix)
+							&& old.getName().endsWith(".txt")
+							&& !old.equals(file)) {
+						compress(old);
+					}
+				}
+			}
+		};
+		offer(task);
+	}
+
+	/**
+	 * Gives a stream that logs each line written to it, for use as
+	 * System.out or System.err. Output that doesn't go through a
+	 * {@link RunLogger}, such as stack traces, still ends up in the log.
+	 *
+	 * @param errors
+	 *            true to log the lines as warnings
+	 * @return the stream
+	 */
+	public PrintStream asPrintStream(final boolean errors) {
+		OutputStream lines = new OutputStream() {
+			private final ByteArrayOutputStream line = new ByteArrayOutputStream(
+					256);
+
+			@Override
+			public synchronized void write(int b) {
+				if (b == '\n') {
+					emit();
+				} else if (b != '\r') {
+					line.write(b);
+				}
+			}
+
+			@Override
+			public synchronized void write(byte[] b, int off, int len) {
+				for (int i = off; i < off + len; i++) {
+					write(b[i]);
+				}
+			}
+
+			private void emit() {
+				String message;
+				try {
+					message = line.toString("UTF-8");
+				} catch (UnsupportedEncodingException e) {
+					message = line.toString();
+				}
+				line.reset();
+				if (errors) {
+					warning(message);
+				} else {
+					info(message);
+				}
+			}
+		};
+		try {
+			return new PrintStream(lines, false, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			return new PrintStream(lines, false);
+		}
+	}
+
+	/**
+	 * Writes out everything logged so far and closes the log. Anything
+	 * logged afterwards goes to the standard error stream the log was
+	 * opened from.
+	 */
+	@Override
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		Record marker = new Record(Record.CLOSE, null, null);
+		try {
+			buffer.put(marker);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		}
+		await(marker);
+		try {
+			Runtime.getRuntime().removeShutdownHook(shutdownHook);
+		} catch (IllegalStateException e) {
+			// we are the shutdown hook
+		}
+	}
+
+	private void offer(Record record) {
+		if (closed) {
+			if (record.text != null) {
+				fallback.println(record.text);
+			}
+			return;
+		}
+		if (!buffer.offer(record)) {
+			dropped.incrementAndGet();
+		}
+	}
+
+	private void await(Record marker) {
+		try {
+			if (!marker.done.await(CLOSE_TIMEOUT, TimeUnit.MILLISECONDS)) {
+				fallback.println("WARNING: Run log is not keeping up");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * The writer thread
+	 */
+	private void drain() {
+		ArrayList<Record> batch = new ArrayList<Record>();
+		long lastFlush = System.currentTimeMillis();
+		while (true) {
+			try {
+				Record first = buffer.poll(FLUSH_INTERVAL,
+						TimeUnit.MILLISECONDS);
+				if (first != null) {
+					batch.add(first);
+					buffer.drainTo(batch);
+				}
+			} catch (InterruptedException e) {
+				// carry on, close() tells us when to stop
+			}
+
+			try {
+				long lost = dropped.getAndSet(0);
+				if (lost > 0) {
+					write(new Record(Record.MESSAGE, "WARNING", lost
+							+ " log messages were dropped; the log could not keep up"));
+				}
+				for (Record record : batch) {
+					switch (record.type) {
+					case Record.MESSAGE:
+						write(record);
+						break;
+					case Record.TASK:
+						record.task.run();
+						break;
+					case Record.FLUSH:
+						out.flush();
+						lastFlush = System.currentTimeMillis();
+						record.done.countDown();
+						break;
+					case Record.CLOSE:
+						out.close();
+						record.done.countDown();
+						return;
+					}
+				}
+				if (System.currentTimeMillis() - lastFlush >= FLUSH_INTERVAL) {
+					out.flush();
+					lastFlush = System.currentTimeMillis();
+				}
+			} catch (IOException e) {
+				fallback.println("WARNING: Cannot write run log " + file + ": "
+						+ e.getMessage());
+			} finally {
+				// never leave anyone waiting on a marker
+				for (Record record : batch) {
+					if (record.done != null) {
+						record.done.countDown();
+					}
+				}
+				batch.clear();
+			}
+		}
+	}
+
+	private void write(Record record) throws IOException {
+		String line = format.format(new Date(record.time)) + " "
+				+ record.level + " " + record.text + "\n";
+		long now = System.currentTimeMillis();
+		if (written > 0
+				&& (written + line.length() > maxBytes || now - openedAt > maxAge)) {
+			rotate();
+		}
+		out.write(line);
+		written += line.getBytes(UTF8).length;
+	}
+
+	private void open() throws IOException {
+		out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(
+				file, true), UTF8), 65536);
+		written = file.length();
+		openedAt = System.currentTimeMillis();
+	}
+
+	private void rotate() throws IOException {
+		out.close();
+		String name = file.getName();
+		int dot = name.lastIndexOf('.');
+		String stem = dot < 0 ? name : name.substring(0, dot);
+		String extension = dot < 0 ? "" : name.substring(dot);
+		File rotated;
+		do {
+			part++;
+			rotated = new File(file.getParentFile(), stem + " part " + part
+					+ extension);
+		} while (rotated.exists()
+				|| new File(rotated.getPath() + ".gz").exists());
+		if (!file.renameTo(rotated)) {
+			fallback.println("WARNING: Cannot rotate run log " + file);
+		} else {
+			compress(rotated);
+		}
+		open();
+	}
+
+	/**
+	 * Replaces a file with a gzipped copy
+	 */
+	private void compress(File plain) {
+		File gzipped = new File(plain.getPath() + ".gz");
+		try {
+			InputStream in = new FileInputStream(plain);
+			try {
+				OutputStream zip = new GZIPOutputStream(new FileOutputStream(
+						gzipped));
+				try {
+					byte[] chunk = new byte[65536];
+					int read;
+					while ((read = in.read(chunk)) > 0) {
+						zip.write(chunk, 0, read);
+					}
+				} finally {
+					zip.close();
+				}
+			} finally {
+				in.close();
+			}
+			if (!plain.delete()) {
+				fallback.println("WARNING: Cannot delete " + plain
+						+ " after compressing it");
+			}
+		} catch (IOException e) {
+			fallback.println("WARNING: Cannot compress " + plain + ": "
+					+ e.getMessage());
+			gzipped.delete();
+		}
+	}
+
+	private static final class Record {
+		private static final int MESSAGE = 0, FLUSH = 1, CLOSE = 2, TASK = 3;
+
+		private final int type;
+		private final long time = System.currentTimeMillis();
+		private final String level;
+		private final String text;
+		private final CountDownLatch done;
+		private Runnable task;
+
+		private Record(int type, String level, String text) {
+			this.type = type;
+			this.level = level;
+			this.text = text;
+			this.done = type == FLUSH || type == CLOSE ? new CountDownLatch(1)
+					: null;
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package wiki;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+/**
+ * Reads and writes the serialized caches the bot keeps between runs. A cache
+ * that can't be read or written is never fatal: it is reported as a warning
+ * and the caller fetches everything again.
+ */
+final class CacheFile {
+
+	private CacheFile() {
+	}
+
+	/**
+	 * Reads a cache
+	 *
+	 * @param file
+	 *            the cache file
+	 * @param type
+	 *            what the cache should hold
+	 * @param description
+	 *            what the cache is, for the warning, e.g. "party cache"
+	 * @param logger
+	 *            where to report a cache that can't be read
+	 * @return the cached object, or null if the file doesn't exist or can't
+	 *         be read
+	 */
+	static <T> T read(File file, Class<T> type, String description,
+			RunLogger logger) {
+		if (!file.exists()) {
+			return null;
+		}
+		try {
+			ObjectInputStream in = new ObjectInputStream(new FileInputStream(
+					file));
+			try {
+				return type.cast(in.readObject());
+			} finally {
+				in.close();
+			}
+		} catch (Exception e) {
+			// Not fatal, we'll just fetch it again
+			logger.warning("Cannot read " + description + " " + file + ": "
+					+ e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Writes a cache, replacing the old one
+	 *
+	 * @param file
+	 *            the cache file
+	 * @param value
+	 *            what to cache
+	 * @param description
+	 *            what the cache is, for the warning, e.g. "party cache"
+	 * @param logger
+	 *            where to report a cache that can't be written
+	 */
+	static void write(File file, Serializable value, String description,
+			RunLogger logger) {
+		try {
+			ObjectOutputStream out = new ObjectOutputStream(
+					new FileOutputStream(file));
+			try {
+				out.writeObject(value);
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			logger.warning("Cannot write " + description + " " + file + ": "
+					+ e.getMessage());
+		}
+	}
+}
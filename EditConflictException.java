@@ -0,0 +1,16 @@
+package wiki;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the server refuses an edit because the page was edited by
+ * someone else after the bot read it, and the changes couldn't be merged.
+ * Read the page again and redo the edit.
+ */
+public class EditConflictException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	public EditConflictException(String message) {
+		super(message);
+	}
+}
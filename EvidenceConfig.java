@@ -0,0 +1,290 @@
+package wiki;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import wiki.wikitext.Comment;
+import wiki.wikitext.Wikitext;
+import wiki.wikitext.WikitextCache;
+
+/**
+ * The evidence module's settings as read from the bot's configuration page.
+ * Settings are lines of the form <tt>*KEY=value</tt>; anything else on the
+ * page is ignored. Settings that are missing are null, so the caller can keep
+ * its defaults. Lines that can't be understood are skipped and reported in
+ * {@link #getErrors()}. Settings inside comments are ignored.
+ *
+ * The page is parsed in a single pass. Parsed configurations are saved along
+ * with the revision they were parsed from, so as long as the page hasn't been
+ * edited it is neither fetched nor parsed again.
+ */
+public class EvidenceConfig implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private long revision;
+	private Integer wordLimit, diffLimit, linkLimit;
+	private Double wordTolerance, diffTolerance, linkTolerance;
+	private Integer partyWordLimit, partyDiffLimit, partyLinkLimit;
+	private final ArrayList<UserOverride> overrides = new ArrayList<UserOverride>();
+	private final ArrayList<String> errors = new ArrayList<String>();
+
+	private EvidenceConfig(long revision) {
+		this.revision = revision;
+	}
+
+	/**
+	 * Gets the configuration from the wiki, unless the cached copy is of the
+	 * current revision
+	 *
+	 * @param wiki
+	 *            the wiki
+	 * @param parsed
+	 *            parsed pages; the page is taken from here if this revision
+	 *            has already been parsed, and added if not
+	 * @param page
+	 *            the configuration page
+	 * @param cacheFile
+	 *            where to keep the parsed configuration between runs
+	 * @param logger
+	 *            where to report progress and cache problems
+	 * @return the configuration
+	 * @throws IOException
+	 *             if the page cannot be fetched
+	 */
+	public static EvidenceConfig load(Wiki wiki, WikitextCache parsed,
+			String page, File cacheFile, RunLogger logger) throws IOException {
+		long revision = wiki.getCurrentRevisionIds(page)[0];
+
+		EvidenceConfig cached = CacheFile.read(cacheFile,
+				EvidenceConfig.class, "configuration cache", logger);
+		if (cached != null && revision != 0 && cached.revision == revision) {
+			logger.info("Configuration unchanged since revision " + revision
+					+ ", using cached copy.");
+			return cached;
+		}
+
+		Wikitext text = parsed.get(page, revision);
+		if (text == null) {
+			text = parsed.put(page, revision, wiki.getPageText(page));
+		}
+		EvidenceConfig config = parse(text, revision);
+		CacheFile.write(cacheFile, config, "configuration cache", logger);
+		return config;
+	}
+
+	/**
+	 * Parses the text of a configuration page
+	 *
+	 * @param text
+	 *            the page text
+	 * @param revision
+	 *            the revision the text came from
+	 * @return the configuration
+	 */
+	public static EvidenceConfig parse(String text, long revision) {
+		return parse(new Wikitext(text), revision);
+	}
+
+	/**
+	 * Parses a configuration page
+	 *
+	 * @param page
+	 *            the page, parsed
+	 * @param revision
+	 *            the revision the text came from
+	 * @return the configuration
+	 */
+	public static EvidenceConfig parse(Wikitext page, long revision) {
+		// blank out comments, keeping their line breaks so the line numbers
+		// in errors still match the page
+		StringBuilder uncommented = new StringBuilder(page.getText());
+		for (Comment comment : page.getComments()) {
+			for (int i = comment.getStart(); i < comment.getEnd(); i++) {
+				if (uncommented.charAt(i) != '\n') {
+					uncommented.setCharAt(i, ' ');
+				}
+			}
+		}
+		String text = uncommented.toString();
+
+		EvidenceConfig config = new EvidenceConfig(revision);
+		int lineNumber = 0;
+		int start = 0;
+		while (start <= text.length()) {
+			int end = text.indexOf('\n', start);
+			if (end < 0) {
+				end = text.length();
+			}
+			lineNumber++;
+			config.parseLine(text.substring(start, end).trim(), lineNumber);
+			start = end + 1;
+		}
+		return config;
+	}
+
+	private void parseLine(String line, int lineNumber) {
+		int equals = line.indexOf('=');
+		if (!line.startsWith("*") || equals < 0) {
+			return;
+		}
+		String key = line.substring(1, equals).trim();
+		String value = line.substring(equals + 1).trim();
+
+		try {
+			if (key.equals("WORD_LENGTH")) {
+				wordLimit = Integer.valueOf(value);
+			} else if (key.equals("WORD_TOLERANCE")) {
+				wordTolerance = Double.valueOf(value);
+			} else if (key.equals("DIFF_COUNT")) {
+				diffLimit = Integer.valueOf(value);
+			} else if (key.equals("DIFF_TOLERANCE")) {
+				diffTolerance = Double.valueOf(value);
+			} else if (key.equals("LINK_COUNT")) {
+				linkLimit = Integer.valueOf(value);
+			} else if (key.equals("LINK_TOLERANCE")) {
+				linkTolerance = Double.valueOf(value);
+			} else if (key.equals("PARTY_LENGTH")) {
+				partyWordLimit = Integer.valueOf(value);
+			} else if (key.equals("PARTY_DIFF_COUNT")) {
+				partyDiffLimit = Integer.valueOf(value);
+			} else if (key.equals("PARTY_LINK_COUNT")) {
+				partyLinkLimit = Integer.valueOf(value);
+			} else if (key.equals("OVERRIDE")) {
+				String[] args = value.split("\\|");
+				if (args.length != 8) {
+					errors.add("Line " + lineNumber + ": override for "
+							+ args[0].trim()
+							+ " has the wrong number of arguments");
+					return;
+				}
+				overrides.add(new UserOverride(args[0].trim(), args[1], Integer
+						.parseInt(args[2].trim()), Integer.parseInt(args[3]
+						.trim()), Integer.parseInt(args[4].trim()), Double
+						.parseDouble(args[5].trim()), Double.parseDouble(args[6]
+						.trim()), Double.parseDouble(args[7].trim())));
+			}
+			// anything else is ignored
+		} catch (NumberFormatException e) {
+			errors.add("Line " + lineNumber + ": " + key
+					+ " is not a number (" + e.getMessage() + ")");
+		}
+	}
+
+	/**
+	 * @return the revision of the configuration page this was parsed from
+	 */
+	public long getRevision() {
+		return revision;
+	}
+
+	public Integer getWordLimit() {
+		return wordLimit;
+	}
+
+	public Integer getDiffLimit() {
+		return diffLimit;
+	}
+
+	public Integer getLinkLimit() {
+		return linkLimit;
+	}
+
+	public Double getWordTolerance() {
+		return wordTolerance;
+	}
+
+	public Double getDiffTolerance() {
+		return diffTolerance;
+	}
+
+	public Double getLinkTolerance() {
+		return linkTolerance;
+	}
+
+	public Integer getPartyWordLimit() {
+		return partyWordLimit;
+	}
+
+	public Integer getPartyDiffLimit() {
+		return partyDiffLimit;
+	}
+
+	public Integer getPartyLinkLimit() {
+		return partyLinkLimit;
+	}
+
+	/**
+	 * @return the per-user, per-case overrides, in the order they appear
+	 */
+	public List<UserOverride> getOverrides() {
+		return Collections.unmodifiableList(overrides);
+	}
+
+	/**
+	 * @return a description of each line that couldn't be understood
+	 */
+	public List<String> getErrors() {
+		return Collections.unmodifiableList(errors);
+	}
+
+	/**
+	 * Limits for one user in one case. A limit of -1 means no limit.
+	 */
+	public static class UserOverride implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private final String userName;
+		private final String caseName;
+		private final int wordLimit, diffLimit, linkLimit;
+		private final double wordTolerance, diffTolerance, linkTolerance;
+
+		private UserOverride(String userName, String caseName, int wordLimit,
+				int diffLimit, int linkLimit, double wordTolerance,
+				double diffTolerance, double linkTolerance) {
+			this.userName = userName;
+			this.caseName = caseName;
+			this.wordLimit = wordLimit;
+			this.diffLimit = diffLimit;
+			this.linkLimit = linkLimit;
+			this.wordTolerance = wordTolerance;
+			this.diffTolerance = diffTolerance;
+			this.linkTolerance = linkTolerance;
+		}
+
+		public String getUserName() {
+			return userName;
+		}
+
+		public String getCaseName() {
+			return caseName;
+		}
+
+		public int getWordLimit() {
+			return wordLimit;
+		}
+
+		public int getDiffLimit() {
+			return diffLimit;
+		}
+
+		public int getLinkLimit() {
+			return linkLimit;
+		}
+
+		public double getWordTolerance() {
+			return wordTolerance;
+		}
+
+		public double getDiffTolerance() {
+			return diffTolerance;
+		}
+
+		public double getLinkTolerance() {
+			return linkTolerance;
+		}
+	}
+}
@@ -0,0 +1,362 @@
+package wiki;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Decides whether a bot may leave a message on a page, according to the
+ * {{bots}} and {{nobots}} templates on it:
+ * <ul>
+ * <li><tt>{{nobots}}</tt> keeps out all bots, <tt>{{bots}}</tt> none</li>
+ * <li><tt>allow=</tt> lets in only the bots listed; <tt>all</tt> and
+ * <tt>none</tt> mean what they say</li>
+ * <li><tt>deny=</tt> keeps out the bots listed, likewise</li>
+ * <li><tt>optout=</tt> keeps out messages of the types listed, or of every
+ * type with <tt>all</tt></li>
+ * </ul>
+ * Every call to either template on the page counts, and any one of them can
+ * keep the bot out. The text is read once, and reading stops as soon as a
+ * template keeps the bot out. The exception is a long page whose lead
+ * section calls one of them: the lead decides, and the rest isn't fetched. Templates inside comments and nowiki tags are
+ * ignored, since MediaWiki doesn't transclude them.
+ *
+ * Results for whole pages are kept per revision, so a page is only fetched
+ * and read again after it has been edited. Pages that use neither template
+ * are never fetched at all.
+ */
+public class ExclusionChecker {
+	public static final String[] TEMPLATES = { "Template:Bots",
+			"Template:Nobots" };
+	public static final int CACHE_SIZE = 500;
+	/**
+	 * Pages longer than this, in bytes, have their lead section read first,
+	 * and are only fetched whole if it doesn't call either template
+	 */
+	public static final int PARTIAL_READ_SIZE = 64 * 1024;
+
+	// what scan() found
+	private static final int EXCLUDED = -1;
+	private static final int NOT_FOUND = 0;
+	private static final int ALLOWED = 1;
+
+	private final String botName;
+	private final String messageType;
+	private final LinkedHashMap<String, CachedResult> results = new LinkedHashMap<String, CachedResult>(
+			16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, CachedResult> eldest) {
+			return size() > CACHE_SIZE;
+		}
+	};
+
+	/**
+	 * @param botName
+	 *            the bot's user name
+	 * @param messageType
+	 *            the type of message the bot leaves, as used by
+	 *            <tt>optout=</tt>, or null if it has none
+	 */
+	public ExclusionChecker(String botName, String messageType) {
+		this.botName = normalizeName(botName);
+		this.messageType = messageType == null ? null : messageType.trim();
+	}
+
+	/**
+	 * Forgets every page checked so far
+	 */
+	public void clear() {
+		synchronized (results) {
+			results.clear();
+		}
+	}
+
+	/**
+	 * Checks whether the bot may leave a message on a page. See
+	 * {@link #allows(Wiki, String...)}.
+	 *
+	 * @param wiki
+	 *            the wiki
+	 * @param title
+	 *            the page
+	 * @return true if the bot is not excluded, including when the page doesn't
+	 *         exist
+	 * @throws IOException
+	 *             if a network error occurs
+	 */
+	public boolean allows(Wiki wiki, String title) throws IOException {
+		return allows(wiki, new String[] { title })[0];
+	}
+
+	/**
+	 * Checks whether the bot may leave a message on each of several pages.
+	 * Which pages use the templates is found out for all of them together,
+	 * and only those pages are downloaded, and then only if this revision
+	 * hasn't been checked before. Long pages have their lead read first;
+	 * see {@link #PARTIAL_READ_SIZE}.
+	 *
+	 * @param wiki
+	 *            the wiki
+	 * @param titles
+	 *            the pages
+	 * @return whether the bot is allowed on each page, in the same order
+	 * @throws IOException
+	 *             if a network error occurs
+	 */
+	public boolean[] allows(Wiki wiki, String... titles) throws IOException {
+		HashMap<String, Object>[] usage = wiki.getTemplateUsage(titles,
+				TEMPLATES);
+		boolean[] allowed = new boolean[titles.length];
+		for (int i = 0; i < titles.length; i++) {
+			if (!(Boolean) usage[i].get("exists")
+					|| ((Set<?>) usage[i].get("templates")).isEmpty()) {
+				allowed[i] = true;
+				continue;
+			}
+
+			long revision = (Long) usage[i].get("lastrevid");
+			synchronized (results) {
+				CachedResult cached = results.get(titles[i]);
+				if (cached != null && cached.revision == revision) {
+					allowed[i] = cached.allowed;
+					continue;
+				}
+			}
+			allowed[i] = read(wiki, titles[i], (Integer) usage[i].get("size"));
+			synchronized (results) {
+				results.put(titles[i], new CachedResult(revision, allowed[i]));
+			}
+		}
+		return allowed;
+	}
+
+	/**
+	 * Reads a page that uses one of the templates. {{bots}} is usually at the
+	 * top of a page, so for a long page the lead section is read first, and
+	 * the rest only if the lead doesn't call either template.
+	 */
+	private boolean read(Wiki wiki, String title, int size) throws IOException {
+		if (size > PARTIAL_READ_SIZE) {
+			String lead = wiki.getSectionText(title, 0);
+			int found = scan(lead);
+			if (found != NOT_FOUND) {
+				return found == ALLOWED;
+			}
+			if (lead.getBytes("UTF-8").length >= size) {
+				return true; // the page has no headings
+			}
+		}
+		String text = wiki.getPageTexts(title)[0];
+		return text == null || allows(text);
+	}
+
+	/**
+	 * Checks whether the bot may leave a message on a page
+	 *
+	 * @param text
+	 *            the text of the page
+	 * @return true if the bot is not excluded
+	 */
+	public boolean allows(CharSequence text) {
+		return scan(text) != EXCLUDED;
+	}
+
+	/**
+	 * Reads every call to {{bots}} or {{nobots}} in some text, stopping at
+	 * the first one that keeps the bot out
+	 *
+	 * @return {@link #EXCLUDED}, {@link #ALLOWED} if there are calls and none
+	 *         keeps the bot out, or {@link #NOT_FOUND} if there are none
+	 */
+	private int scan(CharSequence text) {
+		int length = text.length();
+		int position = 0;
+		int found = NOT_FOUND;
+		while (position < length) {
+			char c = text.charAt(position);
+			if (c == '<' && startsWith(text, position, "<!--")) {
+				position = skipPast(text, position + 4, "-->");
+			} else if (c == '<' && startsWith(text, position, "<nowiki>")) {
+				position = skipPast(text, position + 8, "</nowiki>");
+			} else if (c == '{' && startsWith(text, position, "{{")) {
+				int end = exclusionTemplate(text, position);
+				if (end < 0) {
+					position += 2;
+				} else if (end == Integer.MAX_VALUE) {
+					return EXCLUDED;
+				} else {
+					found = ALLOWED;
+					position = end;
+				}
+			} else {
+				position++;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Reads a call to {{bots}} or {{nobots}} at the given position
+	 *
+	 * @return -1 if there isn't one, {@link Integer#MAX_VALUE} if it keeps
+	 *         the bot out, otherwise the position just after it
+	 */
+	private int exclusionTemplate(CharSequence text, int position) {
+		int i = skipWhitespace(text, position + 2);
+		if (startsWith(text, i, "Template:") || startsWith(text, i, "template:")) {
+			i = skipWhitespace(text, i + 9);
+		}
+		boolean nobots;
+		if (i < text.length() && (text.charAt(i) == 'n' || text.charAt(i) == 'N')
+				&& startsWith(text, i + 1, "obots")) {
+			nobots = true;
+			i += 6;
+		} else if (i < text.length()
+				&& (text.charAt(i) == 'b' || text.charAt(i) == 'B')
+				&& startsWith(text, i + 1, "ots")) {
+			nobots = false;
+			i += 4;
+		} else {
+			return -1;
+		}
+		i = skipWhitespace(text, i);
+		if (!startsWith(text, i, "|") && !startsWith(text, i, "}}")) {
+			return -1;
+		}
+
+		// read the parameters up to the matching braces
+		String allow = null, deny = null, optout = null;
+		int depth = 0;
+		int partStart = i + 1;
+		int equals = -1;
+		while (i < text.length()) {
+			if (startsWith(text, i, "{{")) {
+				depth++;
+				i += 2;
+				continue;
+			}
+			boolean close = startsWith(text, i, "}}");
+			if (close && depth > 0) {
+				depth--;
+				i += 2;
+				continue;
+			}
+			char c = text.charAt(i);
+			if (depth == 0 && (close || c == '|')) {
+				if (equals > partStart) {
+					String key = text.subSequence(partStart, equals).toString()
+							.trim();
+					String value = text.subSequence(equals + 1, i).toString();
+					if (key.equals("allow")) {
+						allow = value;
+					} else if (key.equals("deny")) {
+						deny = value;
+					} else if (key.equals("optout")) {
+						optout = value;
+					}
+				}
+				if (close) {
+					break;
+				}
+				partStart = i + 1;
+				equals = -1;
+			} else if (depth == 0 && c == '=' && equals < 0) {
+				equals = i;
+			}
+			i++;
+		}
+		if (i >= text.length()) {
+			return -1; // never closed, so not a template
+		}
+
+		boolean excluded;
+		if (allow != null || deny != null) {
+			excluded = (allow != null && !listed(allow))
+					|| (deny != null && listed(deny));
+		} else {
+			excluded = nobots;
+		}
+		if (optout != null && messageListed(optout)) {
+			excluded = true;
+		}
+		return excluded ? Integer.MAX_VALUE : i + 2;
+	}
+
+	/**
+	 * @return whether a list of bots includes this one; <tt>all</tt> always
+	 *         does and <tt>none</tt> never does
+	 */
+	private boolean listed(String list) {
+		for (String entry : list.split(",")) {
+			String name = normalizeName(entry);
+			if (name.equalsIgnoreCase("all") || name.equals(botName)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean messageListed(String list) {
+		for (String entry : list.split(",")) {
+			String type = entry.trim();
+			if (type.equalsIgnoreCase("all")
+					|| (messageType != null && type.equalsIgnoreCase(messageType))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static String normalizeName(String name) {
+		String normalized = name.replace('_', ' ').trim();
+		if (normalized.isEmpty()) {
+			return normalized;
+		}
+		return Character.toUpperCase(normalized.charAt(0))
+				+ normalized.substring(1);
+	}
+
+	private static boolean startsWith(CharSequence text, int position,
+			String prefix) {
+		if (position + prefix.length() > text.length()) {
+			return false;
+		}
+		for (int i = 0; i < prefix.length(); i++) {
+			if (text.charAt(position + i) != prefix.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int skipWhitespace(CharSequence text, int position) {
+		while (position < text.length()
+				&& Character.isWhitespace(text.charAt(position))) {
+			position++;
+		}
+		return position;
+	}
+
+	private static int skipPast(CharSequence text, int position, String marker) {
+		for (int i = position; i + marker.length() <= text.length(); i++) {
+			if (startsWith(text, i, marker)) {
+				return i + marker.length();
+			}
+		}
+		return text.length();
+	}
+
+	private static final class CachedResult {
+		private final long revision;
+		private final boolean allowed;
+
+		private CachedResult(long revision, boolean allowed) {
+			this.revision = revision;
+			this.allowed = allowed;
+		}
+	}
+}
@@ -0,0 +1,300 @@
+package wiki;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The body of a POST request, written straight to the connection instead of
+ * being built up in memory first. Small bodies are sent urlencoded; bodies
+ * with a lot of text are sent as multipart/form-data, which doesn't triple
+ * the size of every non-ASCII character. Either way the length is worked out
+ * beforehand so the request can be streamed with a fixed length, unless the
+ * body is compressed, in which case it is sent in chunks.
+ */
+public final class FormBody {
+	/**
+	 * Bodies with more text than this, in characters, are sent as
+	 * multipart/form-data
+	 */
+	public static final int MULTIPART_THRESHOLD = 32 * 1024;
+
+	private static final byte[] CRLF = { '\r', '\n' };
+	private static final Random RANDOM = new Random();
+
+	// {name, value}; a null name means the value is already urlencoded
+	private final ArrayList<String[]> fields = new ArrayList<String[]>();
+	private int textLength = 0;
+	private boolean preencoded = false;
+
+	/**
+	 * Adds a field
+	 *
+	 * @param name
+	 *            the field name
+	 * @param value
+	 *            the value, not encoded
+	 * @return this body
+	 */
+	public FormBody add(String name, String value) {
+		fields.add(new String[] { name, value });
+		textLength += name.length() + value.length();
+		return this;
+	}
+
+	/**
+	 * Adds fields that are already urlencoded, like <tt>a=1&amp;b=2</tt>. A
+	 * body with these is always sent urlencoded.
+	 *
+	 * @param encoded
+	 *            the fields
+	 * @return this body
+	 */
+	public FormBody addEncoded(String encoded) {
+		if (!encoded.isEmpty()) {
+			fields.add(new String[] { null, encoded });
+			textLength += encoded.length();
+			preencoded = true;
+		}
+		return this;
+	}
+
+	/**
+	 * @param name
+	 *            a field name
+	 * @param value
+	 *            its value
+	 * @return a copy of this body with one more field
+	 */
+	public FormBody with(String name, String value) {
+		FormBody copy = new FormBody();
+		copy.fields.addAll(fields);
+		copy.textLength = textLength;
+		copy.preencoded = preencoded;
+		return copy.add(name, value);
+	}
+
+	/**
+	 * @return true if this body will be sent as multipart/form-data
+	 */
+	public boolean isMultipart() {
+		return !preencoded && textLength > MULTIPART_THRESHOLD;
+	}
+
+	/**
+	 * Sends this body. Sets the content type and length (or chunked mode) on
+	 * the connection, which must not be connected yet.
+	 *
+	 * @param connection
+	 *            the connection
+	 * @param compress
+	 *            whether to gzip the body; only if the server accepts
+	 *            compressed requests
+	 * @throws IOException
+	 *             if a network error occurs
+	 */
+	public void send(HttpURLConnection connection, boolean compress)
+			throws IOException {
+		String boundary = null;
+		if (isMultipart()) {
+			boundary = "WikiJavaBoundary" + Long.toHexString(RANDOM.nextLong())
+					+ Long.toHexString(RANDOM.nextLong());
+			connection.setRequestProperty("Content-Type",
+					"multipart/form-data; boundary=" + boundary);
+		} else {
+			connection.setRequestProperty("Content-Type",
+					"application/x-www-form-urlencoded; charset=UTF-8");
+		}
+		if (compress) {
+			connection.setRequestProperty("Content-Encoding", "gzip");
+			connection.setChunkedStreamingMode(0);
+		} else {
+			connection.setFixedLengthStreamingMode(boundary == null ? writeUrlencoded(null)
+					: writeMultipart(null, boundary));
+		}
+		connection.setDoOutput(true);
+
+		OutputStream out = new BufferedOutputStream(
+				connection.getOutputStream(), 8192);
+		if (compress) {
+			out = new GZIPOutputStream(out, 8192);
+		}
+		try {
+			if (boundary == null) {
+				writeUrlencoded(out);
+			} else {
+				writeMultipart(out, boundary);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * @return the body urlencoded, as it would be sent if it weren't
+	 *         multipart. For logging and snapshots.
+	 */
+	@Override
+	public String toString() {
+		StringBuilder text = new StringBuilder(textLength + 64);
+		for (String[] field : fields) {
+			if (text.length() > 0) {
+				text.append('&');
+			}
+			if (field[0] == null) {
+				text.append(field[1]);
+			} else {
+				try {
+					text.append(java.net.URLEncoder.encode(field[0], "UTF-8"));
+					text.append('=');
+					text.append(java.net.URLEncoder.encode(field[1], "UTF-8"));
+				} catch (java.io.UnsupportedEncodingException e) {
+					throw new AssertionError(e); // UTF-8 is always there
+				}
+			}
+		}
+		return text.toString();
+	}
+
+	/**
+	 * Writes, or with a null stream only counts, the body urlencoded
+	 *
+	 * @return the length in bytes
+	 */
+	private long writeUrlencoded(OutputStream out) throws IOException {
+		long length = 0;
+		for (String[] field : fields) {
+			if (length > 0) {
+				length += write(out, '&');
+			}
+			if (field[0] == null) {
+				length += writeAscii(out, field[1]);
+			} else {
+				length += encode(out, field[0], true);
+				length += write(out, '=');
+				length += encode(out, field[1], true);
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * Writes, or with a null stream only counts, the body as
+	 * multipart/form-data
+	 *
+	 * @return the length in bytes
+	 */
+	private long writeMultipart(OutputStream out, String boundary)
+			throws IOException {
+		long length = 0;
+		for (String[] field : fields) {
+			length += writeAscii(out, "--" + boundary);
+			length += write(out, CRLF);
+			length += writeAscii(out, "Content-Disposition: form-data; name=\"");
+			length += encode(out, field[0], false);
+			length += writeAscii(out, "\"");
+			length += write(out, CRLF);
+			length += writeAscii(out, "Content-Type: text/plain; charset=UTF-8");
+			length += write(out, CRLF);
+			length += write(out, CRLF);
+			length += encode(out, field[1], false);
+			length += write(out, CRLF);
+		}
+		length += writeAscii(out, "--" + boundary + "--");
+		length += write(out, CRLF);
+		return length;
+	}
+
+	/**
+	 * Writes text as UTF-8, percent-encoded the way URLEncoder does it if
+	 * asked. Unpaired surrogates become question marks, as with URLEncoder.
+	 *
+	 * @return the number of bytes
+	 */
+	private static long encode(OutputStream out, String text, boolean percent)
+			throws IOException {
+		long length = 0;
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (percent
+					&& ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+							|| (c >= '0' && c <= '9') || c == '.' || c == '-'
+							|| c == '*' || c == '_')) {
+				length += write(out, c);
+				continue;
+			}
+			if (percent && c == ' ') {
+				length += write(out, '+');
+				continue;
+			}
+			int codePoint = c;
+			if (Character.isHighSurrogate(c) && i + 1 < text.length()
+					&& Character.isLowSurrogate(text.charAt(i + 1))) {
+				codePoint = Character.toCodePoint(c, text.charAt(++i));
+			} else if (Character.isSurrogate(c)) {
+				codePoint = '?';
+			}
+			if (codePoint < 0x80) {
+				length += writeByte(out, codePoint, percent);
+			} else if (codePoint < 0x800) {
+				length += writeByte(out, 0xc0 | (codePoint >> 6), percent);
+				length += writeByte(out, 0x80 | (codePoint & 0x3f), percent);
+			} else if (codePoint < 0x10000) {
+				length += writeByte(out, 0xe0 | (codePoint >> 12), percent);
+				length += writeByte(out, 0x80 | ((codePoint >> 6) & 0x3f),
+						percent);
+				length += writeByte(out, 0x80 | (codePoint & 0x3f), percent);
+			} else {
+				length += writeByte(out, 0xf0 | (codePoint >> 18), percent);
+				length += writeByte(out, 0x80 | ((codePoint >> 12) & 0x3f),
+						percent);
+				length += writeByte(out, 0x80 | ((codePoint >> 6) & 0x3f),
+						percent);
+				length += writeByte(out, 0x80 | (codePoint & 0x3f), percent);
+			}
+		}
+		return length;
+	}
+
+	private static int writeByte(OutputStream out, int b, boolean percent)
+			throws IOException {
+		if (!percent) {
+			return write(out, b);
+		}
+		if (out != null) {
+			out.write('%');
+			out.write(Character.toUpperCase(Character.forDigit((b >> 4) & 0xf,
+					16)));
+			out.write(Character.toUpperCase(Character.forDigit(b & 0xf, 16)));
+		}
+		return 3;
+	}
+
+	private static int write(OutputStream out, int b) throws IOException {
+		if (out != null) {
+			out.write(b);
+		}
+		return 1;
+	}
+
+	private static int write(OutputStream out, byte[] bytes) throws IOException {
+		if (out != null) {
+			out.write(bytes);
+		}
+		return bytes.length;
+	}
+
+	private static int writeAscii(OutputStream out, String text)
+			throws IOException {
+		if (out != null) {
+			for (int i = 0; i < text.length(); i++) {
+				out.write(text.charAt(i));
+			}
+		}
+		return text.length();
+	}
+}
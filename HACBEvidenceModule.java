@@ -1,18 +1,21 @@
 package wiki;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.PrintStream;
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Scanner;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.security.auth.login.LoginException;
 
+import wiki.wikitext.Section;
+import wiki.wikitext.Template;
+import wiki.wikitext.Wikitext;
+
 public class HACBEvidenceModule extends HACBModule {
 
 	public static final String DIFF_REGEX = "/w/index\\.php[^]\\s]*?diff";
@@ -21,14 +24,22 @@ public class HACBEvidenceModule extends HACBModule {
 	public static final String USER_NOTICE_HEADER = "Your Arbitration evidence is too long";
 	public static final String USER_NOTICE_TEMPLATE = "{{subst:User:HersfoldArbClerkBot/User Notice";
 	public static final String WARNING_LOG = "warningLog.txt";
+	public static final String INVALID_SECTION_LOG = "invalidSectionLog.txt";
+	public static final String CONFIGURATION_CACHE = "evidenceConfig.cache";
 	public static final String UPDATE_SECTION_SUMMARY = "[[User:HersfoldArbClerkBot|Bot]] updating evidence length information";
 	public static final String INVALID_SECTION_TEMPLATE = "{{User:HersfoldArbClerkBot/InvalidSectionName}}";
+	public static final String LENGTH_HEADER_TEMPLATE = "User:HersfoldArbClerkBot/Length header";
 	public static final String INVALID_SECTION_SUMMARY = "Marking section with malformed header - please correct for analysis.";
 	public static final String USER_TEMPLATE_REGEX = "\\{\\{([Aa]dmin|[Uu]serlinks)\\|([^}]+)\\}\\}";
+	public static final String PARTY_CACHE = "partyCache.cache";
+	public static final String[] PARTY_TEMPLATES = { "Admin", "Userlinks" };
 
 	private ArrayList<String> caseList = new ArrayList<String>();
-	private HashMap<String, ArrayList<String>> warningLog = new HashMap<String, ArrayList<String>>();
+	private WarningLedger warningLedger;
 	private HashMap<String, HashMap<String, LimitData>> overrides = new HashMap<String, HashMap<String, LimitData>>();
+	private HashMap<String, CaseLimits> limitTable = new HashMap<String, CaseLimits>();
+	private LimitPolicy policy = LimitPolicy.BUILT_IN;
+	private LinkedHashMap<String, List<PendingNotice>> pendingNotices = new LinkedHashMap<String, List<PendingNotice>>();
 	private boolean changesMade = false;
 
 	public HACBEvidenceModule(Wiki wiki, boolean noEditMode) {
@@ -41,10 +52,11 @@ public class HACBEvidenceModule extends HACBModule {
 		getCases();
 		// ArrayList<String> cases = caseList;
 		getConfiguration();
-		LimitData info = new LimitData();
-		LimitData partyInfo = new LimitData(true);
+		LimitData info = policy.getDefaults();
+		LimitData partyInfo = policy.getPartyDefaults();
 		getCasePartyOverrides();
 		// HashMap<String, HashMap<String, LimitData>> overrideList = overrides;
+		buildLimitTable();
 		getWarningLog();
 
 		String lengthReport = "Currently using the following default settings for parties:\n"
@@ -82,15 +94,44 @@ public class HACBEvidenceModule extends HACBModule {
 						+ " Tolerance: "
 						+ info.getLinkTolerance()) + "\n\n";
 
+		// Look up the protection of every page we will edit in one go
+		if (!noEditMode) {
+			String[] pages = new String[caseList.size() + 1];
+			for (int i = 0; i < caseList.size(); i++) {
+				pages[i] = ARB_CASE_PREFIX + caseList.get(i) + EVIDENCE_SUFFIX;
+			}
+			pages[caseList.size()] = LENGTH_REPORT_PAGE;
+			try {
+				this.wiki.prefetchProtection(pages);
+			} catch (IOException e) {
+				IOError(e);
+			}
+		}
+
 		// Begin run
 		for (String caseName : caseList) {
+			if (isStopRequested()) {
+				getLogger().warning("Asked to stop before " + caseName
+						+ ", leaving the remaining cases for the next run.");
+				break;
+			}
 			checkForNewMessages();
 			lengthReport += processCase(caseName);
 		}
 
-		// Update report, even if stopped mid-run
-		if (changesMade) {
-			editLengthReport(lengthReport);
+		if (!isStopRequested()) {
+			sendNotices();
+
+			// Update report
+			if (changesMade) {
+				editLengthReport(lengthReport);
+			}
+		}
+
+		try {
+			warningLedger.close();
+		} catch (IOException e) {
+			IOError(e);
 		}
 	}
 
@@ -332,37 +373,11 @@ public class HACBEvidenceModule extends HACBModule {
 	 * Gets a list of open cases from Template:ArbComOpenTasks
 	 */
 	private void getCases() {
-		String templateContent = null;
-		try {
-			templateContent = this.wiki.getPageText(ARBCOMOPENTASKS);
-		} catch (IOException e) {
-			IOError(e);
-		}
-		if (templateContent != null) {
-			while (templateContent.contains(OPEN_TASKS_LINE)) {
-				int primaryIndex = templateContent.indexOf(OPEN_TASKS_LINE);
-				int secondaryIndex = templateContent
-						.indexOf("}}", primaryIndex);
-
-				String lineEntry = templateContent.substring(primaryIndex,
-						secondaryIndex);
-				lineEntry.replace("\n", "|");
-				lineEntry += "|";
-				templateContent = templateContent.substring(secondaryIndex);
-
-				int modeStart = lineEntry.indexOf("=",
-						lineEntry.indexOf(OPEN_TASKS_MODE)) + 1;
-				int modeEnd = lineEntry.indexOf("|", modeStart);
-				String mode = lineEntry.substring(modeStart,
-						(modeEnd < 0 ? lineEntry.length() - 1 : modeEnd));
-				mode = mode.trim();
-
-				int nameStart = lineEntry.indexOf("=",
-						lineEntry.indexOf(OPEN_TASKS_NAME) + 1) + 1;
-				String name = lineEntry.substring(nameStart,
-						lineEntry.indexOf("|", nameStart));
-				name = name.trim();
-				if (mode.equalsIgnoreCase("review")) {
+		List<OpenCase> openCases = getOpenCases();
+		if (openCases != null) {
+			for (OpenCase openCase : openCases) {
+				String name = openCase.getName();
+				if (openCase.isReview()) {
 					name += REVIEW_SUFFIX;
 				}
 				if (!caseList.contains(name)) {
@@ -410,6 +425,31 @@ public class HACBEvidenceModule extends HACBModule {
 		return false;
 	}
 
+	/**
+	 * Checks that a heading on the page is the one the server listed. The
+	 * server may give headings rendered, so links, bold and italic markup,
+	 * HTML tags and entities are resolved in both before comparing.
+	 * 
+	 * @param heading
+	 *            the heading on the page, or null if there is none
+	 * @param sectionName
+	 *            the heading the server listed
+	 * @return true if they are the same
+	 */
+	private boolean headingMatches(String heading, String sectionName) {
+		return heading != null
+				&& plainHeading(heading).equals(plainHeading(sectionName));
+	}
+
+	private static String plainHeading(String heading) {
+		heading = heading.replace("&quot;", "\"").replace("&lt;", "<")
+				.replace("&gt;", ">").replace("&amp;", "&");
+		heading = heading.replaceAll("<.*?>", "").replaceAll("'{2,}", "");
+		heading = heading.replaceAll(
+				"\\[\\[(?:[^\\]|]*\\|)?([^\\]]*)\\]\\]", "$1");
+		return decodeHTMLEntities(heading).replaceAll("\\s+", " ").trim();
+	}
+
 	/**
 	 * Reviews the length of evidence sections in a given case and acts
 	 * accordingly
@@ -428,15 +468,35 @@ public class HACBEvidenceModule extends HACBModule {
 			sections = this.wiki.getLevelTwoHeaders(evidencePage);
 
 			if (sections != null && !sections.isEmpty()) {
+				// read the page once and save all the section updates in
+				// one edit
+				PageEdit page = new PageEdit(this.wiki, evidencePage,
+						PARSE_CACHE);
+				HashMap<Integer, String> markers = new HashMap<Integer, String>();
 				for (int sectionNum : sections.keySet()) {
 					String sectionName = sections.get(sectionNum);
 					String userName = extractUsername(sectionName);
 					userName = decodeHTMLEntities(userName);
 
+					String sectionText = page.getSectionText(sectionNum);
+					if (sectionText == null) {
+						getLogger().warning(evidencePage + " has no section "
+								+ sectionNum + " (" + sectionName
+								+ "), skipping.");
+						continue;
+					}
+					if (!headingMatches(page.getHeading(sectionNum), sectionName)) {
+						// the server and the bot split the page differently,
+						// e.g. a heading inside <ref> tags
+						getLogger().warning("Section " + sectionNum + " of "
+								+ evidencePage + " is headed \""
+								+ page.getHeading(sectionNum) + "\", not \""
+								+ sectionName + "\", skipping.");
+						continue;
+					}
+
 					if (!sectionName.matches(".*\\{.*\\}.*")
 							&& validSectionName(sectionName)) {
-						String sectionText = this.wiki.getSectionText(
-								evidencePage, sectionNum);
 
 						int wordCount = countWords(sectionText);
 						int diffCount = countDiffs(sectionText);
@@ -446,7 +506,7 @@ public class HACBEvidenceModule extends HACBModule {
 								sectionName, userName, wordCount, diffCount,
 								linkCount);
 
-						updateSectionCount(sectionNum, sectionText,
+						updateSectionCount(page, sectionNum, sectionText,
 								sectionName, caseName, wordCount, diffCount,
 								linkCount);
 
@@ -454,89 +514,152 @@ public class HACBEvidenceModule extends HACBModule {
 								diffCount, linkCount);
 
 					} else if (!validSectionName(sectionName)) {
-						String sectionText = this.wiki.getSectionText(
-								evidencePage, sectionNum);
-
-						markInvalidSection(evidencePage, sectionName,
-								sectionNum, sectionText);
+						markInvalidSection(page, sectionName, sectionNum,
+								sectionText, markers);
 					}
 				}
+				recordSectionMarkers(evidencePage, markers, savePageEdit(page));
 			}
 
 		} catch (IOException e) {
 			IOError(e);
 		}
 
+		// Save this case's warnings before moving on
+		try {
+			warningLedger.flush();
+		} catch (IOException e) {
+			IOError(e);
+		}
+
 		lengthReport += "\n\n";
 
 		return lengthReport;
 	}
 
-	private void markInvalidSection(String evidencePage, String sectionName,
-			int sectionNum, String sectionText) {
+	/**
+	 * Saves the section updates made to an evidence page
+	 * 
+	 * @param page
+	 *            the page's edits
+	 * @return the sections whose updates were saved
+	 */
+	private List<Integer> savePageEdit(PageEdit page) {
+		List<Integer> changed = page.getChangedSections();
+		List<Integer> saved = new ArrayList<Integer>();
+		boolean notdone = true;
+		while (notdone) {
+			try {
+				saved.addAll(page.commit());
+				for (int section : changed) {
+					if (!saved.contains(section)) {
+						getLogger().warning("Section " + section + " of "
+								+ page.getTitle() + " was edited while the bot"
+								+ " was updating it, leaving it for the next run.");
+					}
+				}
+				notdone = false;
+			} catch (EditConflictException e) {
+				getLogger().warning(page.getTitle() + " kept being edited while"
+						+ " the bot was updating it, leaving it for the next run.");
+				notdone = false;
+			} catch (LoginException e) {
+				try {
+					HersfoldArbClerkBot.attemptLogin(e, "savePageEdit");
+				} catch (IOException ioe) {
+					IOError(ioe);
+					notdone = false;
+				}
+			} catch (IOException e) {
+				IOError(e);
+				notdone = false;
+			}
+		}
+		return saved;
+	}
+
+	/**
+	 * Adds the invalid section template to a section, unless it has been
+	 * marked before. The marker is only recorded once the edit is saved; see
+	 * {@link #recordSectionMarkers(String, HashMap, List)}.
+	 * 
+	 * @param markers
+	 *            the sections of this page being marked, by number
+	 */
+	private void markInvalidSection(PageEdit page, String sectionName,
+			int sectionNum, String sectionText, HashMap<Integer, String> markers) {
 
+		String evidencePage = page.getTitle();
 		String template = INVALID_SECTION_TEMPLATE;
 
 		if (!noEditMode) {
-			if (!warningLog.containsKey(sectionName)) {
-				recordToWarningLog(sectionName, evidencePage);
-
-				if (sectionText
-						.contains("User:HersfoldArbClerkBot/Length header")) {
+			boolean marked = false;
+			try {
+				marked = warningLedger.isSectionMarked(sectionName);
+			} catch (IOException e) {
+				IOError(e);
+			}
+			if (!marked) {
+				Section section = page.getSection(sectionNum);
+				List<Template> headers = lengthHeaders(section);
+				if (!headers.isEmpty()) {
 					// remove template
-					int index1 = sectionText
-							.indexOf("{{User:HersfoldArbClerkBot/Length");
-					int index2 = sectionText.indexOf("}}", index1) + 2;
-					String oldTemp = sectionText.substring(index1, index2);
-					if (!oldTemp.equalsIgnoreCase(template)) {
-						sectionText = sectionText
-								.replaceAll(
-										"\\{\\{User:HersfoldArbClerkBot/Length header\\|.*?\\}\\}",
-										"");
-					}
+					sectionText = replaceAll(sectionText, section, headers, "");
 					changesMade = true;
 				}
+				sectionText = addUnderHeading(sectionText, template);
 
-				sectionName = sectionName.replace("(", "\\(");
-				sectionName = sectionName.replace(")", "\\)");
-				sectionText = sectionText.replaceFirst("==\\s*" + sectionName
-						+ "\\s*==", "== " + sectionName + " ==\n" + template
-						+ "\n");
-
-				boolean notdone = true;
-				while (notdone) {
-					try {
-						this.wiki.edit(evidencePage, sectionText,
-								INVALID_SECTION_SUMMARY, false,
-								sectionNum);
-						notdone = false;
-					} catch (LoginException e) {
-						try {
-							HersfoldArbClerkBot.attemptLogin(e,
-									"updateSectionCount");
-						} catch (IOException ioe) {
-							IOError(ioe);
-							notdone = false;
-						}
-						notdone = true;
-					} catch (IOException e) {
-						IOError(e);
-						notdone = false;
-					}
+				if (page.replaceSection(sectionNum, sectionText,
+						INVALID_SECTION_SUMMARY, false)) {
+					markers.put(sectionNum, sectionName);
+				} else {
+					getLogger().warning("Not marking section " + sectionNum
+							+ " of " + evidencePage + ", a section it overlaps"
+							+ " is already being updated.");
 				}
 			}
 		} else {
-			System.out.println("In no edit mode, following edit aborted:");
-			System.out.println(template);
-			System.out.println("Evidence page: " + evidencePage + " Section: "
-					+ sectionName);
+			getLogger().info("In no edit mode, following edit aborted:\n"
+					+ template + "\nEvidence page: " + evidencePage
+					+ " Section: " + sectionName);
+		}
+	}
+
+	/**
+	 * Records that sections have been marked as invalid, so they aren't
+	 * marked again. Only the sections whose edits were saved are recorded.
+	 * 
+	 * @param evidencePage
+	 *            the evidence page
+	 * @param markers
+	 *            the sections marked, by number
+	 * @param saved
+	 *            the sections whose edits were saved
+	 */
+	private void recordSectionMarkers(String evidencePage,
+			HashMap<Integer, String> markers, List<Integer> saved) {
+		for (Map.Entry<Integer, String> marker : markers.entrySet()) {
+			if (!saved.contains(marker.getKey())) {
+				continue;
+			}
+			try {
+				warningLedger.recordSectionMarker(marker.getValue(),
+						evidencePage);
+			} catch (IllegalArgumentException e) {
+				getLogger().warning(e.getMessage());
+			} catch (IOException e) {
+				IOError(e);
+			}
 		}
 	}
 
 	/**
 	 * Edits a section of an Arbitration Evidence page to add a hatnote-like
-	 * summary of the length of the evidence in the section
+	 * summary of the length of the evidence in the section. The edit is saved
+	 * with the rest of the page's updates by {@link #savePageEdit(PageEdit)}.
 	 * 
+	 * @param page
+	 *            the evidence page's edits
 	 * @param number
 	 *            the section index number
 	 * @param text
@@ -552,7 +675,7 @@ public class HACBEvidenceModule extends HACBModule {
 	 * @param links
 	 *            the number of links in the section
 	 */
-	private void updateSectionCount(int number, String text,
+	private void updateSectionCount(PageEdit page, int number, String text,
 			String sectionName, String caseName, int words, int diffs, int links)
 			throws IOException {
 		sectionName = decodeHTMLEntities(sectionName);
@@ -560,7 +683,7 @@ public class HACBEvidenceModule extends HACBModule {
 
 		LimitData info = getLimitData(userName, caseName);
 
-		String template = "{{User:HersfoldArbClerkBot/Length header|word="
+		String template = "{{" + LENGTH_HEADER_TEMPLATE + "|word="
 				+ words + "|diff=" + diffs + "|link=" + links;
 
 		template += "|wLimit=" + info.getWordLimit() + "|dLimit="
@@ -568,58 +691,81 @@ public class HACBEvidenceModule extends HACBModule {
 
 		template += "}}";
 
-		if (text.contains("User:HersfoldArbClerkBot/Length header")) {
-			int index1 = text.indexOf("{{User:HersfoldArb");
-			int index2 = text.indexOf("}}", index1) + 2;
-			String oldTemp = text.substring(index1, index2);
+		Section section = page.getSection(number);
+		List<Template> headers = lengthHeaders(section);
+		if (!headers.isEmpty()) {
+			String oldTemp = headers.get(0).getSource();
 			if (!oldTemp.equalsIgnoreCase(template)) {
-				text = text
-						.replaceAll(
-								"\\{\\{User:HersfoldArbClerkBot/Length header\\|.*?\\}\\}",
-								template);
+				text = replaceAll(text, section, headers, template);
 				changesMade = true;
 			}
 		} else {
-			// sanitize for regex
-			sectionName = sectionName.replace("(", "\\(");
-			sectionName = sectionName.replace(")", "\\)");
-			text = text.replaceFirst("==\\s*" + sectionName + "\\s*==", "== "
-					+ sectionName + " ==\n" + template + "\n");
+			text = addUnderHeading(text, template);
 			changesMade = true;
 		}
 
-		boolean notdone = true;
-		while (notdone) {
-			if (noEditMode) {
-				notdone = false;
-				System.out.println("In no edit mode, following edit aborted:");
-				System.out.println(template);
-				System.out.println("Case: " + caseName + " Section: "
-						+ sectionName);
-			} else {
-				try {
-					this.wiki
-							.edit(ARB_CASE_PREFIX + caseName + EVIDENCE_SUFFIX,
-									text,
-									UPDATE_SECTION_SUMMARY,
-									true, number);
-					notdone = false;
-				} catch (LoginException e) {
-					try {
-						HersfoldArbClerkBot.attemptLogin(e,
-								"updateSectionCount");
-					} catch (IOException ioe) {
-						IOError(ioe);
-						notdone = false;
-					}
-					notdone = true;
-				} catch (IOException e) {
-					IOError(e);
-					notdone = false;
-				}
+		if (noEditMode) {
+			getLogger().info("In no edit mode, following edit aborted:\n"
+					+ template + "\nCase: " + caseName + " Section: "
+					+ sectionName);
+		} else {
+			if (!page.replaceSection(number, text, UPDATE_SECTION_SUMMARY, true)) {
+				getLogger().warning("Not updating section " + number + " of "
+						+ page.getTitle() + ", a section it overlaps is"
+						+ " already being updated.");
 			}
 		}
+	}
 
+	/**
+	 * @param section
+	 *            a section of an evidence page
+	 * @return the length header templates in it, in page order
+	 */
+	private static List<Template> lengthHeaders(Section section) {
+		return section.within(section.getPage().getTemplates(
+				LENGTH_HEADER_TEMPLATE));
+	}
+
+	/**
+	 * Replaces templates in the text of a section
+	 * 
+	 * @param text
+	 *            the text of the section
+	 * @param section
+	 *            the section, as parsed
+	 * @param templates
+	 *            templates in the section
+	 * @param replacement
+	 *            what to put in place of each
+	 * @return the new text of the section
+	 */
+	private static String replaceAll(String text, Section section,
+			List<Template> templates, String replacement) {
+		StringBuilder newText = new StringBuilder(text);
+		// from the end, so the positions of the rest don't move
+		for (int i = templates.size() - 1; i >= 0; i--) {
+			Template template = templates.get(i);
+			newText.replace(template.getStart() - section.getStart(),
+					template.getEnd() - section.getStart(), replacement);
+		}
+		return newText.toString();
+	}
+
+	/**
+	 * @param text
+	 *            the text of a section, starting with its heading
+	 * @param line
+	 *            a line to add
+	 * @return the text with the line added just below the heading
+	 */
+	private static String addUnderHeading(String text, String line) {
+		int newline = text.indexOf('\n');
+		if (newline < 0) {
+			return text + "\n" + line;
+		}
+		return text.substring(0, newline + 1) + line + "\n"
+				+ text.substring(newline + 1);
 	}
 
 	/**
@@ -633,6 +779,33 @@ public class HACBEvidenceModule extends HACBModule {
 	 * @return a LimitData object
 	 */
 	private LimitData getLimitData(String userName, String caseName) {
+		CaseLimits limits = limitTable.get(caseName);
+		if (limits == null) {
+			// not one of this run's cases
+			return resolveLimitData(userName, caseName);
+		}
+		return limits.get(userName);
+	}
+
+	/**
+	 * Works out which limits apply to a user in a case. In order of
+	 * precedence:
+	 * <ol>
+	 * <li>an override for the user in this case (parties to the case get
+	 * one automatically, unless the configuration page already has one)
+	 * <li>an override for the user in "all" cases
+	 * <li>if the user has no overrides at all, an override for "all" users in
+	 * this case
+	 * <li>the defaults
+	 * </ol>
+	 * 
+	 * @param userName
+	 *            the user being checked
+	 * @param caseName
+	 *            the case being checked
+	 * @return a LimitData object
+	 */
+	private LimitData resolveLimitData(String userName, String caseName) {
 		LimitData info = null;
 		if (overrides.containsKey(userName)) {
 			info = overrides.get(userName).get(caseName);
@@ -643,7 +816,7 @@ public class HACBEvidenceModule extends HACBModule {
 			info = overrides.get("all").get(caseName);
 		}
 		if (info == null) {
-			info = new LimitData();
+			info = policy.getDefaults();
 		}
 		return info;
 	}
@@ -676,7 +849,7 @@ public class HACBEvidenceModule extends HACBModule {
 				+ EVIDENCE_SUFFIX + "#" + sectionName;
 		lengthReport += "|" + userName + "]]''' ([[User talk:" + userName
 				+ "|user talk page]])\n";
-		if (wordCount > info.getWordLimit() * info.getWordTolerance()) {
+		if (info.wordsExceeded(wordCount)) {
 			lengthReport += "**'''{{red|Word count: " + wordCount + "}}'''";
 		} else if (wordCount > info.getWordLimit()) {
 			lengthReport += "**'''Word count: " + wordCount + "'''";
@@ -687,7 +860,7 @@ public class HACBEvidenceModule extends HACBModule {
 			lengthReport += " ''(Custom limits: " + info.getWordLimit() + "/"
 					+ info.getWordTolerance() + ")''";
 		}
-		if (diffCount > info.getDiffLimit() * info.getDiffTolerance()) {
+		if (info.diffsExceeded(diffCount)) {
 			lengthReport += "\n**'''{{red|Diff count: " + diffCount + "}}'''";
 		} else if (diffCount > info.getDiffLimit()) {
 			lengthReport += "\n**'''Diff count: " + diffCount + "'''";
@@ -698,7 +871,7 @@ public class HACBEvidenceModule extends HACBModule {
 			lengthReport += " ''(Custom limits: " + info.getDiffLimit() + "/"
 					+ info.getDiffTolerance() + ")''";
 		}
-		if (linkCount > info.getLinkLimit() * info.getLinkTolerance()) {
+		if (info.linksExceeded(linkCount)) {
 			lengthReport += "\n**'''{{red|Link count: " + linkCount + "}}'''";
 		} else if (linkCount > info.getLinkLimit()) {
 			lengthReport += "\n**'''Link count: " + linkCount + "'''";
@@ -715,8 +888,9 @@ public class HACBEvidenceModule extends HACBModule {
 	}
 
 	/**
-	 * Checks to see if a user has exceeded their limits, and if so, issues a
-	 * one-time-per-case warning on their talk page.
+	 * Checks to see if a user has exceeded their limits, and if so, queues a
+	 * warning for this case for their talk page. The warnings are posted
+	 * together by {@link #sendNotices()} at the end of the run.
 	 * 
 	 * @param caseName
 	 *            the case being reviewed
@@ -733,68 +907,105 @@ public class HACBEvidenceModule extends HACBModule {
 			int words, int diffs, int links) {
 		LimitData info = getLimitData(userName, caseName);
 
-		if (words > info.getWordLimit() * info.getWordTolerance()
-				|| diffs > info.getDiffLimit() * info.getDiffTolerance()
-				|| links > info.getLinkLimit() * info.getLinkTolerance()) {
-			if (warningLog.containsKey(userName)) {
-				ArrayList<String> cases = warningLog.get(userName);
-				if (cases.contains(caseName)) {
-					System.out.println("Notice already given to " + userName
+		if (info.exceeded(words, diffs, links)) {
+			boolean warned = false;
+			try {
+				warned = warningLedger.hasWarnedUser(userName);
+			} catch (IOException e) {
+				IOError(e);
+			}
+			if (warned) {
+				if (!recordToWarningLog(userName, caseName)) {
+					getLogger().info("Notice already given to " + userName
 							+ " for " + caseName + ", aborting.");
-				} else {
-					cases.add(caseName);
-					recordToWarningLog(userName, caseName);
 				}
 			} else {
 				if (noEditMode) {
-					System.out.println("Notice to " + userName + " for case "
+					getLogger().info("Notice to " + userName + " for case "
 							+ caseName + " aborted - no edit mode.");
 					return;
 				} else {
-					String pageContent = null;
-					try {
-						pageContent = this.wiki.getPageText("User talk:"
-								+ userName);
-					} catch (IOException e) {
-						IOError(e);
-					}
-					boolean notdone = true;
-					while (notdone) {
-						try {
-							if (noExclusions(pageContent)) {
-								this.wiki.newSection("User talk:" + userName,
-										USER_NOTICE_HEADER,
-										USER_NOTICE_TEMPLATE + "|case="
-												+ caseName + "|words=" + words
-												+ "|diffs=" + diffs + "|links="
-												+ links + "}}", false);
-							}
-							notdone = false;
-
-							ArrayList<String> cases = new ArrayList<String>();
-							cases.add(caseName);
-							warningLog.put(userName, cases);
-
-							recordToWarningLog(userName, caseName);
-						} catch (LoginException e) {
-							try {
-								HersfoldArbClerkBot.attemptLogin(e,
-										"checkLimitsAndWarnUser");
-							} catch (IOException ioe) {
-								IOError(ioe);
-								notdone = false;
-							}
-							notdone = true;
-						} catch (IOException e) {
-							IOError(e);
-							notdone = false;
-						}
+					List<PendingNotice> pending = pendingNotices.get(userName);
+					if (pending == null) {
+						pending = new ArrayList<PendingNotice>();
+						pendingNotices.put(userName, pending);
 					}
+					pending.add(new PendingNotice(userName, caseName, words,
+							diffs, links));
 				}
 			}
 		}
 	}
 
+	/**
+	 * Posts the notices queued during this run, one for each case a user is
+	 * over the limits in. Whether each user's talk page excludes the bot is
+	 * checked for all of them at once, and only the talk pages that use
+	 * {{bots}} or {{nobots}} are downloaded.
+	 * 
+	 * @throws NewMessagesException
+	 */
+	private void sendNotices() throws NewMessagesException {
+		if (pendingNotices.isEmpty()) {
+			return;
+		}
+		checkForNewMessages();
+
+		String[] talkPages = new String[pendingNotices.size()];
+		int i = 0;
+		for (String userName : pendingNotices.keySet()) {
+			talkPages[i++] = "User talk:" + userName;
+		}
+		boolean[] allowed = new boolean[talkPages.length];
+		try {
+			allowed = noExclusionsOn(talkPages);
+		} catch (IOException e) {
+			IOError(e);
+		}
+
+		i = 0;
+		for (List<PendingNotice> notices : pendingNotices.values()) {
+			for (PendingNotice notice : notices) {
+				sendNotice(notice, allowed[i]);
+			}
+			i++;
+		}
+		pendingNotices.clear();
+	}
+
+	private void sendNotice(PendingNotice notice, boolean allowed) {
+		boolean notdone = true;
+		while (notdone) {
+			try {
+				if (allowed) {
+					this.wiki.newSection("User talk:" + notice.userName,
+							USER_NOTICE_HEADER, USER_NOTICE_TEMPLATE + "|case="
+									+ notice.caseName + "|words="
+									+ notice.words + "|diffs=" + notice.diffs
+									+ "|links=" + notice.links + "}}", false);
+				}
+				notdone = false;
+
+				// save it straight away, so it isn't posted again if the run
+				// stops before the end
+				recordToWarningLog(notice.userName, notice.caseName);
+				warningLedger.flush();
+			} catch (LoginException e) {
+				try {
+					HersfoldArbClerkBot.attemptLogin(e, "sendNotice");
+				} catch (IOException ioe) {
+					IOError(ioe);
+					notdone = false;
+				}
+				notdone = true;
+			} catch (IOException e) {
+				IOError(e);
+				notdone = false;
+			}
+		}
+	}
+
+
 	/**
 	 * Adds a user/case pair to the warning log file for later retrieval
 	 * 
@@ -802,45 +1013,86 @@ public class HACBEvidenceModule extends HACBModule {
 	 *            the user being warned
 	 * @param caseName
 	 *            the case the user is being warned for
+	 * @return true if the pair was added, false if it was already logged
 	 */
-	private void recordToWarningLog(String username, String caseName) {
-		File logFile = new File(WARNING_LOG);
-
+	private boolean recordToWarningLog(String username, String caseName) {
 		try {
-			if (!logFile.exists()) {
-				logFile.createNewFile();
-			}
-			if (!logFile.canWrite()) {
-				throw new IOException("Cannot write to warning log file "
-						+ WARNING_LOG);
-			}
-			PrintStream output = new PrintStream(new FileOutputStream(logFile,
-					true));
-
-			output.append(username + ">>>" + caseName + "\n");
-			output.flush();
-			output.close();
+			return warningLedger.recordWarning(username, caseName);
+		} catch (IllegalArgumentException e) {
+			getLogger().warning(e.getMessage());
+			return false;
 		} catch (IOException e) {
 			IOError(e);
+			return false;
 		}
 	}
 
+	/**
+	 * Gives the parties to each case (the users listed with {{admin}} or
+	 * {{userlinks}} in the first section of the case page) the party limits.
+	 * All case pages are checked in one go, and only those edited since the
+	 * last run are fetched and scanned again.
+	 */
 	private void getCasePartyOverrides() {
-		for (String caseName : caseList) {
-			LimitData partyData = new LimitData(true);
-			String mainCasePage = ARB_CASE_PREFIX + caseName;
-			String partySection = "";
-			try {
-				partySection = this.wiki.getSectionText(mainCasePage, 1);
-			} catch (IOException e) {
-				IOError(e);
+		LimitData partyData = policy.getPartyDefaults();
+		String[] casePages = new String[caseList.size()];
+		for (int i = 0; i < casePages.length; i++) {
+			casePages[i] = ARB_CASE_PREFIX + caseList.get(i);
+		}
+
+		HashMap<String, CachedParties> oldCache = readPartyCache();
+		HashMap<String, CachedParties> cache = new HashMap<String, CachedParties>();
+		try {
+			long[] revisions = this.wiki.getCurrentRevisionIds(casePages);
+			ArrayList<Integer> stale = new ArrayList<Integer>();
+			for (int i = 0; i < casePages.length; i++) {
+				CachedParties cached = oldCache.get(casePages[i]);
+				if (cached != null && revisions[i] != 0
+						&& cached.revision == revisions[i]) {
+					cache.put(casePages[i], cached);
+				} else {
+					stale.add(i);
+				}
 			}
 
-			Pattern regex = Pattern.compile(USER_TEMPLATE_REGEX);
-			Matcher matcher = regex.matcher(partySection);
+			if (!stale.isEmpty()) {
+				String[] stalePages = new String[stale.size()];
+				long[] staleRevisions = new long[stalePages.length];
+				for (int i = 0; i < stalePages.length; i++) {
+					stalePages[i] = casePages[stale.get(i)];
+					staleRevisions[i] = revisions[stale.get(i)];
+				}
+				Wikitext[] pages = getWikitexts(stalePages, staleRevisions);
+				for (int i = 0; i < stalePages.length; i++) {
+					ArrayList<String> parties = new ArrayList<String>();
+					Section first = pages[i] == null ? null : pages[i]
+							.getSection(1);
+					if (first != null) {
+						for (Template template : first.within(pages[i]
+								.getTemplates(PARTY_TEMPLATES))) {
+							String party = template.getParam("1");
+							if (party != null) {
+								parties.add(party);
+							}
+						}
+					}
+					cache.put(stalePages[i], new CachedParties(
+							revisions[stale.get(i)], parties));
+				}
+			}
+			writePartyCache(cache);
+		} catch (IOException e) {
+			IOError(e);
+		}
 
-			while (matcher.find()) {
-				String user = matcher.group(2);
+		for (int i = 0; i < casePages.length; i++) {
+			String caseName = caseList.get(i);
+			CachedParties cached = cache.get(casePages[i]);
+			if (cached == null) {
+				continue;
+			}
+
+			for (String user : cached.parties) {
 				HashMap<String, LimitData> caseOverrides = overrides.get(user);
 				if (caseOverrides == null) {
 					caseOverrides = new HashMap<String, LimitData>();
@@ -856,203 +1108,168 @@ public class HACBEvidenceModule extends HACBModule {
 		}
 	}
 
+	@SuppressWarnings("unchecked")
+	private HashMap<String, CachedParties> readPartyCache() {
+		HashMap<String, CachedParties> cache = CacheFile.read(new File(
+				PARTY_CACHE), HashMap.class, "party cache", getLogger());
+		return cache == null ? new HashMap<String, CachedParties>() : cache;
+	}
+
+	private void writePartyCache(HashMap<String, CachedParties> cache) {
+		CacheFile.write(new File(PARTY_CACHE), cache, "party cache",
+				getLogger());
+	}
+
+	/**
+	 * Resolves the limits for every user with an override in every case of
+	 * this run, so that looking them up later is a plain map lookup. Must be
+	 * called after the overrides are complete.
+	 */
+	private void buildLimitTable() {
+		limitTable.clear();
+		for (String caseName : caseList) {
+			// users without overrides of their own
+			LimitData everyone = null;
+			if (overrides.containsKey("all")) {
+				everyone = overrides.get("all").get(caseName);
+			}
+			CaseLimits limits = new CaseLimits(everyone == null ? policy
+					.getDefaults() : everyone);
+			for (String userName : overrides.keySet()) {
+				LimitData info = resolveLimitData(userName, caseName);
+				if (info != limits.everyone) {
+					limits.users.put(userName, info);
+				}
+			}
+			limitTable.put(caseName, limits);
+		}
+	}
+
 	/**
 	 * Gets configuration information from the bot's config page onwiki
 	 */
 	private void getConfiguration() {
-		String config = null;
-		int wordLimit, diffLimit, linkLimit;
-		double wordTolerance, diffTolerance, linkTolerance;
+		EvidenceConfig config = null;
 
 		try {
-			config = this.wiki.getPageText(CONFIGURATION_PAGE);
+			config = EvidenceConfig.load(this.wiki, PARSE_CACHE,
+					CONFIGURATION_PAGE, new File(CONFIGURATION_CACHE),
+					getLogger());
 		} catch (IOException e) {
 			IOError(e);
 		}
 
+		LimitData defaults = LimitPolicy.BUILT_IN.getDefaults();
+		LimitData partyDefaults = LimitPolicy.BUILT_IN.getPartyDefaults();
+		int wordLimit = defaults.getWordLimit();
+		int diffLimit = defaults.getDiffLimit();
+		int linkLimit = defaults.getLinkLimit();
+		double wordTolerance = defaults.getWordTolerance();
+		double diffTolerance = defaults.getDiffTolerance();
+		double linkTolerance = defaults.getLinkTolerance();
+		int partyWordLimit = partyDefaults.getWordLimit();
+		int partyDiffLimit = partyDefaults.getDiffLimit();
+		int partyLinkLimit = partyDefaults.getLinkLimit();
+
 		if (config != null) {
+			for (String error : config.getErrors()) {
+				getLogger().warning(CONFIGURATION_PAGE + " " + error
+						+ ". Ignoring.");
+			}
+
 			// Get word limit
-			int index1 = config.indexOf("*WORD_LENGTH=")
-					+ "*WORD_LENGTH=".length();
-			int index2 = config.indexOf("\n", index1);
-			// ensure page is not corrupted
-			if (index1 != "*WORD_LENGTH=".length() - 1) {
-				wordLimit = Integer.parseInt(config.substring(index1, index2));
-				if (wordLimit == -1) {
-					LimitData.setDefaultWordLimit(Integer.MAX_VALUE);
-					LimitData.setDefaultWordTolerance(1.00);
+			if (config.getWordLimit() != null) {
+				if (config.getWordLimit() == -1) {
+					wordLimit = Integer.MAX_VALUE;
+					wordTolerance = 1.00;
 				} else {
-					index1 = config.indexOf("*WORD_TOLERANCE=")
-							+ "*WORD_TOLERANCE=".length();
-					index2 = config.indexOf("\n", index1);
-					if (index1 != "*WORD_TOLERANCE=".length() - 1) {
-						wordTolerance = Double.parseDouble(config.substring(
-								index1, index2));
-						LimitData.setDefaultWordTolerance(wordTolerance);
-					} else {
-						// Default already set
+					if (config.getWordTolerance() != null) {
+						wordTolerance = config.getWordTolerance();
 					}
-					LimitData.setDefaultWordLimit(wordLimit);
+					wordLimit = config.getWordLimit();
 				}
-			} else {
-				// Do nothing, defaults already set
 			}
 
 			// Get diff limit
-			index1 = config.indexOf("*DIFF_COUNT=") + "*DIFF_COUNT=".length();
-			index2 = config.indexOf("\n", index1);
-			// ensure page is not corrupted
-			if (index1 != "*DIFF_COUNT=".length() - 1) {
-				diffLimit = Integer.parseInt(config.substring(index1, index2));
-				if (diffLimit == -1) {
-					LimitData.setDefaultDiffLimit(Integer.MAX_VALUE);
-					LimitData.setDefaultDiffTolerance(1.00);
+			if (config.getDiffLimit() != null) {
+				if (config.getDiffLimit() == -1) {
+					diffLimit = Integer.MAX_VALUE;
+					diffTolerance = 1.00;
 				} else {
-					index1 = config.indexOf("*DIFF_TOLERANCE=")
-							+ "*DIFF_TOLERANCE=".length();
-					index2 = config.indexOf("\n", index1);
-					if (index1 != "*DIFF_TOLERANCE=".length() - 1) {
-						diffTolerance = Double.parseDouble(config.substring(
-								index1, index2));
-						LimitData.setDefaultDiffTolerance(diffTolerance);
-					} else {
-						// Default already set
+					if (config.getDiffTolerance() != null) {
+						diffTolerance = config.getDiffTolerance();
 					}
-					LimitData.setDefaultDiffLimit(diffLimit);
+					diffLimit = config.getDiffLimit();
 				}
-			} else {
-				// Do nothing, defaults already set
 			}
 
 			// Get link limit
-			index1 = config.indexOf("*LINK_COUNT=") + "*LINK_COUNT=".length();
-			index2 = config.indexOf("\n", index1);
-			// ensure page is not corrupted
-			if (index1 != "*LINK_COUNT=".length() - 1) {
-				linkLimit = Integer.parseInt(config.substring(index1, index2));
-				if (linkLimit == -1) {
-					LimitData.setDefaultLinkLimit(Integer.MAX_VALUE);
-					LimitData.setDefaultLinkTolerance(1.00);
+			if (config.getLinkLimit() != null) {
+				if (config.getLinkLimit() == -1) {
+					linkLimit = Integer.MAX_VALUE;
+					linkTolerance = 1.00;
 				} else {
-					index1 = config.indexOf("*LINK_TOLERANCE=")
-							+ "*LINK_TOLERANCE=".length();
-					index2 = config.indexOf("\n", index1);
-					if (index1 != "*LINK_TOLERANCE=".length() - 1) {
-						linkTolerance = Double.parseDouble(config.substring(
-								index1, index2));
-						LimitData.setDefaultLinkTolerance(linkTolerance);
-					} else {
-						// Default already set
+					if (config.getLinkTolerance() != null) {
+						linkTolerance = config.getLinkTolerance();
 					}
-					LimitData.setDefaultLinkLimit(linkLimit);
+					linkLimit = config.getLinkLimit();
 				}
-			} else {
-				// Do nothing, defaults already set
 			}
 
-			// Get party word limit
-			index1 = config.indexOf("*PARTY_LENGTH=")
-					+ "*PARTY_LENGTH=".length();
-			index2 = config.indexOf("\n", index1);
-			// ensure page is not corrupted
-			if (index1 != "*PARTY_LIMIT=".length() - 1) {
-				wordLimit = Integer.parseInt(config.substring(index1, index2));
-				if (wordLimit == -1) {
-					LimitData.setDefaultPartyWordLimit(Integer.MAX_VALUE);
-				} else {
-					LimitData.setDefaultPartyWordLimit(wordLimit);
-				}
-			} else {
-				// Do nothing, defaults already set
+			// Get party limits
+			if (config.getPartyWordLimit() != null) {
+				partyWordLimit = config.getPartyWordLimit() == -1 ? Integer.MAX_VALUE
+						: config.getPartyWordLimit();
 			}
-
-			// Get party diff limit
-			index1 = config.indexOf("*PARTY_DIFF_COUNT=")
-					+ "*PARTY_DIFF_COUNT=".length();
-			index2 = config.indexOf("\n", index1);
-			// ensure page is not corrupted
-			if (index1 != "*PARTY_DIFF_COUNT=".length() - 1) {
-				diffLimit = Integer.parseInt(config.substring(index1, index2));
-				if (diffLimit == -1) {
-					LimitData.setDefaultPartyDiffLimit(Integer.MAX_VALUE);
-				} else {
-					LimitData.setDefaultPartyDiffLimit(diffLimit);
-				}
-			} else {
-				// Do nothing, defaults already set
+			if (config.getPartyDiffLimit() != null) {
+				partyDiffLimit = config.getPartyDiffLimit() == -1 ? Integer.MAX_VALUE
+						: config.getPartyDiffLimit();
 			}
-
-			// Get party link limit
-			index1 = config.indexOf("*PARTY_LINK_COUNT=")
-					+ "*PARTY_LINK_COUNT=".length();
-			index2 = config.indexOf("\n", index1);
-			// ensure page is not corrupted
-			if (index1 != "*PARTY_LINK_COUNT=".length() - 1) {
-				linkLimit = Integer.parseInt(config.substring(index1, index2));
-				if (linkLimit == -1) {
-					LimitData.setDefaultPartyLinkLimit(Integer.MAX_VALUE);
-				} else {
-					LimitData.setDefaultPartyLinkLimit(linkLimit);
-				}
-			} else {
-				// Do nothing, defaults already set
+			if (config.getPartyLinkLimit() != null) {
+				partyLinkLimit = config.getPartyLinkLimit() == -1 ? Integer.MAX_VALUE
+						: config.getPartyLinkLimit();
 			}
+		}
 
-			while (config.contains("OVERRIDE")) {
-				index1 = config.indexOf("*OVERRIDE=") + "*OVERRIDE=".length();
-				index2 = config.indexOf("\n", index1);
-				String overrideArgs = config.substring(index1, index2);
-				config = config.substring(index2);
+		// Parties get their own limits but the usual tolerances
+		policy = new LimitPolicy(LimitData.of(wordLimit, diffLimit, linkLimit,
+				wordTolerance, diffTolerance, linkTolerance, false),
+				LimitData.of(partyWordLimit, partyDiffLimit, partyLinkLimit,
+						wordTolerance, diffTolerance, linkTolerance, false));
 
-				// We will assume that everything here is in order
-				String[] args = overrideArgs.split("\\|");
-				String username = "", casename = "";
-				try {
-					if (args.length == 8) {
-						username = args[0].trim();
-						casename = args[1];
-						wordLimit = Integer.parseInt(args[2]);
-						diffLimit = Integer.parseInt(args[3]);
-						linkLimit = Integer.parseInt(args[4]);
-						wordTolerance = Double.parseDouble(args[5]);
-						diffTolerance = Double.parseDouble(args[6]);
-						linkTolerance = Double.parseDouble(args[7].trim());
-
-						if (wordLimit == -1) {
-							wordLimit = Integer.MAX_VALUE;
-							wordTolerance = 1.0;
-						}
-						if (diffLimit == -1) {
-							diffLimit = Integer.MAX_VALUE;
-							diffTolerance = 1.0;
-						}
-						if (linkLimit == -1) {
-							linkLimit = Integer.MAX_VALUE;
-							linkTolerance = 1.0;
-						}
+		if (config != null) {
+			for (EvidenceConfig.UserOverride override : config.getOverrides()) {
+				int overrideWordLimit = override.getWordLimit();
+				int overrideDiffLimit = override.getDiffLimit();
+				int overrideLinkLimit = override.getLinkLimit();
+				double overrideWordTolerance = override.getWordTolerance();
+				double overrideDiffTolerance = override.getDiffTolerance();
+				double overrideLinkTolerance = override.getLinkTolerance();
+
+				if (overrideWordLimit == -1) {
+					overrideWordLimit = Integer.MAX_VALUE;
+					overrideWordTolerance = 1.0;
+				}
+				if (overrideDiffLimit == -1) {
+					overrideDiffLimit = Integer.MAX_VALUE;
+					overrideDiffTolerance = 1.0;
+				}
+				if (overrideLinkLimit == -1) {
+					overrideLinkLimit = Integer.MAX_VALUE;
+					overrideLinkTolerance = 1.0;
+				}
 
-						LimitData info = new LimitData(wordLimit, diffLimit,
-								linkLimit, wordTolerance, diffTolerance,
-								linkTolerance);
-						HashMap<String, LimitData> caseEntry = null;
-						if (overrides.containsKey(username)) {
-							caseEntry = overrides.get(username);
-						} else {
-							caseEntry = new HashMap<String, LimitData>();
-						}
-						caseEntry.put(casename, info);
-						overrides.put(username, caseEntry);
-					} else {
-						throw new Exception("Wrong number of arguments");
-					}
-				} catch (Exception e) {
-					// Handles number format exceptions
-					// Ignores override and records notice in log
-					System.err.println("WARNING: Override for " + username
-							+ " on case " + casename + " malformed. Ignoring.");
-					System.err.println(e.getMessage());
-					e.printStackTrace(System.err);
+				LimitData info = LimitData.of(overrideWordLimit,
+						overrideDiffLimit, overrideLinkLimit,
+						overrideWordTolerance, overrideDiffTolerance,
+						overrideLinkTolerance, true);
+				HashMap<String, LimitData> caseEntry = overrides.get(override
+						.getUserName());
+				if (caseEntry == null) {
+					caseEntry = new HashMap<String, LimitData>();
+					overrides.put(override.getUserName(), caseEntry);
 				}
+				caseEntry.put(override.getCaseName(), info);
 			}
 		}
 	}
@@ -1062,31 +1279,9 @@ public class HACBEvidenceModule extends HACBModule {
 	 * received warnings for which cases
 	 */
 	private void getWarningLog() {
-		File logFile = new File(WARNING_LOG);
-
 		try {
-			if (logFile.exists()) {
-				if (logFile.canRead()) {
-					Scanner input = new Scanner(new FileInputStream(logFile));
-
-					while (input.hasNextLine()) {
-						String line = input.nextLine();
-						String[] data = line.split(">>>");
-						String user = data[0];
-						String caseName = data[1];
-
-						if (!warningLog.containsKey(user)) {
-							warningLog.put(user, new ArrayList<String>());
-						}
-						warningLog.get(user).add(caseName);
-					}
-
-					input.close();
-				} else {
-					throw new IOException("Cannot read from warning log file "
-							+ WARNING_LOG);
-				}
-			}
+			warningLedger = new WarningLedger(new File(WARNING_LOG), new File(
+					INVALID_SECTION_LOG), getLogger());
 		} catch (IOException e) {
 			IOError(e);
 		}
@@ -1122,50 +1317,92 @@ public class HACBEvidenceModule extends HACBModule {
 		}
 	}
 
-	private static class LimitData {
-		private static int DEFAULT_WORD_LIMIT = 500;
-		private static int DEFAULT_DIFF_LIMIT = 50;
-		private static int DEFAULT_LINK_LIMIT = Integer.MAX_VALUE;
-
-		private static int DEFAULT_PARTY_WORD_LIMIT = 1000;
-		private static int DEFAULT_PARTY_DIFF_LIMIT = 100;
-		private static int DEFAULT_PARTY_LINK_LIMIT = Integer.MAX_VALUE;
-
-		private static double DEFAULT_WORD_TOLERANCE = 1.10;
-		private static double DEFAULT_DIFF_TOLERANCE = 1.10;
-		private static double DEFAULT_LINK_TOLERANCE = 1.00;
-
-		private int wordLimit = DEFAULT_WORD_LIMIT;
-		private int diffLimit = DEFAULT_DIFF_LIMIT;
-		private int linkLimit = DEFAULT_LINK_LIMIT;
-		private double wordTolerance = DEFAULT_WORD_TOLERANCE;
-		private double diffTolerance = DEFAULT_DIFF_TOLERANCE;
-		private double linkTolerance = DEFAULT_LINK_TOLERANCE;
-		private boolean override = false;
-
-		public LimitData() {
-			// go with defaults
-		}
-
-		public LimitData(boolean party) {
-			if (party) {
-				this.wordLimit = DEFAULT_PARTY_WORD_LIMIT;
-				this.diffLimit = DEFAULT_PARTY_DIFF_LIMIT;
-				this.linkLimit = DEFAULT_PARTY_LINK_LIMIT;
-				// remaining are defaults
-			}
-			// else go with defaults
+	/**
+	 * Forgets the limits shared between runs, so the next run starts out as
+	 * the first one did. For benchmarks.
+	 */
+	static void clearSharedLimits() {
+		LimitData.SHARED.clear();
+	}
+
+	/**
+	 * Describes this module to the {@link ModuleScheduler}
+	 */
+	public static class Provider implements HACBModuleProvider {
+		/**
+		 * A run normally takes a few minutes; this leaves plenty of room for
+		 * the edit throttle and slow days on the servers
+		 */
+		public static final long TIMEOUT = 60 * 60 * 1000L;
+
+		@Override
+		public String getName() {
+			return "evidence";
+		}
+
+		@Override
+		public HACBModule createModule(Wiki wiki, boolean noEditMode) {
+			return new HACBEvidenceModule(wiki, noEditMode);
 		}
 
-		public LimitData(int wordL, int diffL, int linkL, double wordT,
-				double diffT, double linkT) {
+		@Override
+		public long getInterval() {
+			return 0;
+		}
+
+		@Override
+		public long getTimeout() {
+			return TIMEOUT;
+		}
+	}
+
+	/**
+	 * The limits and tolerances that apply to one user in one case. Instances
+	 * are immutable and shared: use {@link #of} rather than creating new ones,
+	 * so that the many users who get the same limits get the same object.
+	 */
+	private static final class LimitData {
+		private static final ConcurrentHashMap<LimitData, LimitData> SHARED = new ConcurrentHashMap<LimitData, LimitData>();
+
+		private final int wordLimit;
+		private final int diffLimit;
+		private final int linkLimit;
+		private final double wordTolerance;
+		private final double diffTolerance;
+		private final double linkTolerance;
+		private final boolean override;
+
+		// limit * tolerance, worked out once rather than on every check
+		private final double wordThreshold;
+		private final double diffThreshold;
+		private final double linkThreshold;
+
+		private LimitData(int wordL, int diffL, int linkL, double wordT,
+				double diffT, double linkT, boolean override) {
 			wordLimit = wordL;
 			diffLimit = diffL;
 			linkLimit = linkL;
 			wordTolerance = wordT;
 			diffTolerance = diffT;
 			linkTolerance = linkT;
-			override = true;
+			this.override = override;
+			wordThreshold = wordL * wordT;
+			diffThreshold = diffL * diffT;
+			linkThreshold = linkL * linkT;
+		}
+
+		/**
+		 * Gets the shared instance with the given limits
+		 * 
+		 * @param override
+		 *            whether these are custom limits set for a user
+		 */
+		public static LimitData of(int wordL, int diffL, int linkL,
+				double wordT, double diffT, double linkT, boolean override) {
+			LimitData data = new LimitData(wordL, diffL, linkL, wordT, diffT,
+					linkT, override);
+			LimitData shared = SHARED.putIfAbsent(data, data);
+			return shared == null ? data : shared;
 		}
 
 		public boolean equals(Object otherObj) {
@@ -1179,49 +1416,42 @@ public class HACBEvidenceModule extends HACBModule {
 						&& this.getWordTolerance() == otherLD
 								.getWordTolerance()
 						&& this.getLinkTolerance() == otherLD
-								.getLinkTolerance();
+								.getLinkTolerance()
+						&& this.isOverride() == otherLD.isOverride();
 			}
 			return false;
 		}
 
-		public boolean isOverride() {
-			return override;
-		}
-
-		public static void setDefaultWordLimit(int defaultWordLimit) {
-			DEFAULT_WORD_LIMIT = defaultWordLimit;
-		}
-
-		public static void setDefaultDiffLimit(int defaultDiffLimit) {
-			DEFAULT_DIFF_LIMIT = defaultDiffLimit;
-		}
-
-		public static void setDefaultLinkLimit(int defaultLinkLimit) {
-			DEFAULT_LINK_LIMIT = defaultLinkLimit;
+		public int hashCode() {
+			long bits = Double.doubleToLongBits(wordTolerance) * 31
+					+ Double.doubleToLongBits(diffTolerance) * 17
+					+ Double.doubleToLongBits(linkTolerance);
+			return ((wordLimit * 31 + diffLimit) * 31 + linkLimit) * 31
+					+ (int) (bits ^ (bits >>> 32)) + (override ? 1 : 0);
 		}
 
-		public static void setDefaultPartyWordLimit(int defaultPartyWordLimit) {
-			DEFAULT_PARTY_WORD_LIMIT = defaultPartyWordLimit;
-		}
-
-		public static void setDefaultPartyDiffLimit(int defaultPartyDiffLimit) {
-			DEFAULT_PARTY_DIFF_LIMIT = defaultPartyDiffLimit;
+		public boolean isOverride() {
+			return override;
 		}
 
-		public static void setDefaultPartyLinkLimit(int defaultPartyLinkLimit) {
-			DEFAULT_PARTY_LINK_LIMIT = defaultPartyLinkLimit;
+		/**
+		 * @return true if any count is over its limit, allowing for tolerance
+		 */
+		public boolean exceeded(int words, int diffs, int links) {
+			return words > wordThreshold || diffs > diffThreshold
+					|| links > linkThreshold;
 		}
 
-		public static void setDefaultWordTolerance(double defaultWordTolerance) {
-			DEFAULT_WORD_TOLERANCE = defaultWordTolerance;
+		public boolean wordsExceeded(int words) {
+			return words > wordThreshold;
 		}
 
-		public static void setDefaultDiffTolerance(double defaultDiffTolerance) {
-			DEFAULT_DIFF_TOLERANCE = defaultDiffTolerance;
+		public boolean diffsExceeded(int diffs) {
+			return diffs > diffThreshold;
 		}
 
-		public static void setDefaultLinkTolerance(double defaultLinkTolerance) {
-			DEFAULT_LINK_TOLERANCE = defaultLinkTolerance;
+		public boolean linksExceeded(int links) {
+			return links > linkThreshold;
 		}
 
 		public int getWordLimit() {
@@ -1265,4 +1495,91 @@ public class HACBEvidenceModule extends HACBModule {
 			return string.toString();
 		}
 	}
+
+	/**
+	 * A notice to a user that hasn't been posted yet
+	 */
+	private static final class PendingNotice {
+		private final String userName;
+		private final String caseName;
+		private final int words, diffs, links;
+
+		private PendingNotice(String userName, String caseName, int words,
+				int diffs, int links) {
+			this.userName = userName;
+			this.caseName = caseName;
+			this.words = words;
+			this.diffs = diffs;
+			this.links = links;
+		}
+	}
+
+	/**
+	 * The parties to a case as of a revision of the case page
+	 */
+	private static final class CachedParties implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private final long revision;
+		private final ArrayList<String> parties;
+
+		private CachedParties(long revision, ArrayList<String> parties) {
+			this.revision = revision;
+			this.parties = parties;
+		}
+	}
+
+	/**
+	 * The resolved limits for one case: those for users with overrides, and
+	 * the limits for everyone else
+	 */
+	private static final class CaseLimits {
+		private final HashMap<String, LimitData> users = new HashMap<String, LimitData>();
+		private final LimitData everyone;
+
+		private CaseLimits(LimitData everyone) {
+			this.everyone = everyone;
+		}
+
+		private LimitData get(String userName) {
+			LimitData info = users.get(userName);
+			return info == null ? everyone : info;
+		}
+	}
+
+	/**
+	 * The default limits for one run, built from the configuration page. Each
+	 * module has its own, so runs don't affect each other.
+	 */
+	private static final class LimitPolicy {
+		/**
+		 * The limits used when the configuration page doesn't say otherwise
+		 */
+		public static final LimitPolicy BUILT_IN = new LimitPolicy(LimitData
+				.of(500, 50, Integer.MAX_VALUE, 1.10, 1.10, 1.00, false),
+				LimitData.of(1000, 100, Integer.MAX_VALUE, 1.10, 1.10, 1.00,
+						false));
+
+		private final LimitData defaults;
+		private final LimitData partyDefaults;
+
+		public LimitPolicy(LimitData defaults, LimitData partyDefaults) {
+			this.defaults = defaults;
+			this.partyDefaults = partyDefaults;
+		}
+
+		/**
+		 * @return the limits for users who aren't parties to the case
+		 */
+		public LimitData getDefaults() {
+			return defaults;
+		}
+
+		/**
+		 * @return the limits for parties to the case
+		 */
+		public LimitData getPartyDefaults() {
+			return partyDefaults;
+		}
+	}
 }
@@ -1,9 +1,15 @@
 package wiki;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import wiki.wikitext.Wikitext;
+import wiki.wikitext.WikitextCache;
+
 public abstract class HACBModule {
 	
 	public static final String ARB_CASE_PREFIX = "Wikipedia:Arbitration/Requests/Case/";
@@ -14,9 +20,24 @@ public abstract class HACBModule {
 	public static final String OPEN_TASKS_NAME = "name";
 	public static final String OPEN_TASKS_MODE = "mode";
 	public static final String CONFIGURATION_PAGE = "User:HersfoldArbClerkBot/Configuration";
+	public static final String OPEN_CASES_CACHE = "openCases.cache";
+	public static final int PARSE_CACHE_SIZE = 200;
+	
+	/**
+	 * Parsed pages, shared by every module so that each revision of a page is
+	 * only fetched and parsed once per run
+	 */
+	protected static final WikitextCache PARSE_CACHE = new WikitextCache(PARSE_CACHE_SIZE);
+	
+	/**
+	 * The bot's {{bots}} checks, shared by every module
+	 */
+	protected static final ExclusionChecker EXCLUSIONS = new ExclusionChecker(HersfoldArbClerkBot.BOT_NAME, null);
 	
 	protected final Wiki wiki;
 	protected final boolean noEditMode;
+	private volatile RunLogger logger = RunLogger.CONSOLE;
+	private volatile boolean stopRequested = false;
 	
 	public HACBModule(Wiki wiki, boolean noEditMode){
 		if(wiki == null){
@@ -32,8 +53,54 @@ public abstract class HACBModule {
 	 */
 	public abstract void run() throws NewMessagesException;
 	
+	/**
+	 * Sets where the module logs to. Called by the scheduler before the
+	 * module is run.
+	 * @param logger the run log
+	 */
+	void setLogger(RunLogger logger){
+		this.logger = logger;
+	}
+	
+	/**
+	 * @return the run log; the console if the module isn't run by a scheduler
+	 */
+	protected RunLogger getLogger(){
+		return logger;
+	}
+	
+	/**
+	 * Asks the module to stop at the next point where it can. Called by the
+	 * scheduler when the module runs past its timeout, or another module
+	 * finds new messages.
+	 */
+	void stop(){
+		stopRequested = true;
+	}
+	
+	/**
+	 * Checks whether the module has been asked to stop. Modules should check
+	 * between units of work, such as cases, and return once they have saved
+	 * what they have done. The scheduler waits for them, so the bot doesn't
+	 * log out or exit in the middle of an edit.
+	 * @return true if the module should stop
+	 */
+	protected boolean isStopRequested(){
+		return stopRequested || Thread.currentThread().isInterrupted();
+	}
+	
+	/**
+	 * Empties the caches shared by every module, so the next run starts out
+	 * as the first one did. For benchmarks.
+	 */
+	static void clearSharedCaches(){
+		PARSE_CACHE.clear();
+		EXCLUSIONS.clear();
+	}
+	
 	/**
 	 * Handled IOException errors by ending the program, unless the error is caused by page protection
+	 * or an edit conflict
 	 * @param e the IOException
 	 */
 	protected static void IOError(IOException e){
@@ -41,20 +108,86 @@ public abstract class HACBModule {
 			System.err.println("ERROR: Edit failed due to page protection. Ignoring exception and continuing.");
 			return;
 		}
+		if(e instanceof EditConflictException){
+			System.err.println("ERROR: " + e.getMessage() + " Leaving it for the next run and continuing.");
+			return;
+		}
 		System.err.println(e.getMessage());
 		e.printStackTrace(System.err);
 		System.exit(-1);
 	}
 	
+	/**
+	 * Gets the cases listed on Template:ArbComOpenTasks/Cases. The list is only
+	 * parsed again when the template has been edited.
+	 * @return the open cases, or null if they could not be fetched
+	 */
+	protected List<OpenCase> getOpenCases(){
+		try{
+			return OpenCase.load(wiki, PARSE_CACHE, ARBCOMOPENTASKS, new File(OPEN_CASES_CACHE), getLogger());
+		}
+		catch(IOException e){
+			IOError(e);
+			return null;
+		}
+	}
+	
+	/**
+	 * Gets the current text of several pages, parsed. See {@link #getWikitexts(String[], long[])}.
+	 * @param titles the pages
+	 * @return the parsed text of each page, or null for those that don't exist
+	 * @throws IOException
+	 */
+	protected Wikitext[] getWikitexts(String... titles) throws IOException{
+		return getWikitexts(titles, wiki.getCurrentRevisionIds(titles));
+	}
+	
+	/**
+	 * Gets the parsed text of the given revisions of several pages. Revisions
+	 * already in {@link #PARSE_CACHE} are neither fetched nor parsed again; the
+	 * rest are fetched together and added to it.
+	 * @param titles the pages
+	 * @param revisions the current revision of each page, 0 if unknown
+	 * @return the parsed text of each page, or null for those that don't exist
+	 * @throws IOException
+	 */
+	protected Wikitext[] getWikitexts(String[] titles, long[] revisions) throws IOException{
+		Wikitext[] pages = new Wikitext[titles.length];
+		ArrayList<Integer> stale = new ArrayList<Integer>();
+		for(int i = 0; i < titles.length; i++){
+			pages[i] = PARSE_CACHE.get(titles[i], revisions[i]);
+			if(pages[i] == null){
+				stale.add(i);
+			}
+		}
+		if(!stale.isEmpty()){
+			String[] staleTitles = new String[stale.size()];
+			for(int i = 0; i < staleTitles.length; i++){
+				staleTitles[i] = titles[stale.get(i)];
+			}
+			String[] texts = wiki.getPageTexts(staleTitles);
+			for(int i = 0; i < staleTitles.length; i++){
+				if(texts[i] != null){
+					int index = stale.get(i);
+					pages[index] = PARSE_CACHE.put(titles[index], revisions[index], texts[i]);
+				}
+			}
+		}
+		return pages;
+	}
+	
 	/**
 	 * Checks for new messages and throws an exception if any are noted.
 	 * Modules may catch these exceptions, but only as needed to ensure graceful
 	 * shutdown. The exception should still be thrown to the main driver.
+	 * The answer from the bot's most recent batched query is used if it is
+	 * recent enough (see {@link Wiki#setMessagesMaxAge}), so this is usually
+	 * free.
 	 * @throws NewMessagesException
 	 */
 	protected void checkForNewMessages() throws NewMessagesException{
 		try{
-			if(wiki.hasNewMessages()){
+			if(wiki.hasNewMessages(true)){
 				throw new NewMessagesException();
 			}
 		}
@@ -70,38 +203,19 @@ public abstract class HACBModule {
 	 * @return true if the bot is not excluded
 	 */
 	protected boolean noExclusions(String pageContent){
-		boolean ok = true;
-
-		if(pageContent.contains("{{nobots") || pageContent.contains("{{bots")){
-			boolean nobots = true;
-			int index1 = pageContent.indexOf("{{nobots");
-			if(index1 == -1){
-				index1 = pageContent.indexOf("{{bots");
-				nobots = false;
-			}
-			int index2 = pageContent.indexOf("}}", index1) + 2;
-			String template = pageContent.substring(index1, index2);
-
-			if(template.contains("allow")){
-				index1 = template.indexOf("allow");
-				index2 = template.indexOf("|", index1);
-				int index3 = template.indexOf("}}", index1);
-				String allow = template.substring(index1, (index2 == -1 ? index3 : index2));
-				ok = allow.contains("all") || allow.contains(HersfoldArbClerkBot.BOT_NAME);
-			}
-			else if(template.contains("deny")){
-				index1 = template.indexOf("deny");
-				index2 = template.indexOf("|", index1);
-				int index3 = template.indexOf("}}", index1);
-				String deny = template.substring(index1, (index2 == -1 ? index3 : index2));
-				ok = !(deny.contains("all") || deny.contains(HersfoldArbClerkBot.BOT_NAME));
-			}
-			else{
-				ok = !nobots;
-			}
-		}
-
-		return ok;
+		return EXCLUSIONS.allows(pageContent);
+	}
+	
+	/**
+	 * Checks whether the bot is denied access to pages with the {{bots}}
+	 * template. The pages are checked together, and only those that use
+	 * {{bots}} or {{nobots}} are downloaded.
+	 * @param titles the pages
+	 * @return for each page, true if the bot is not excluded or the page doesn't exist
+	 * @throws IOException
+	 */
+	protected boolean[] noExclusionsOn(String... titles) throws IOException{
+		return EXCLUSIONS.allows(wiki, titles);
 	}
 	
 	public static String decodeHTMLEntities(String string) {
@@ -0,0 +1,37 @@
+package wiki;
+
+/**
+ * Describes a module to the {@link ModuleScheduler}: how to create it, how
+ * often it should run and for how long. Providers are found
+ * with {@link java.util.ServiceLoader}, so a new module can be added by
+ * listing its provider in
+ * <tt>META-INF/services/wiki.HACBModuleProvider</tt> in the bot's JAR.
+ * Providers must have a public constructor with no arguments.
+ */
+public interface HACBModuleProvider {
+
+	/**
+	 * @return a short name for the module, unique among all modules
+	 */
+	public String getName();
+
+	/**
+	 * Creates the module for a run
+	 * @param wiki the wiki, shared with every other module
+	 * @param noEditMode true if the module should not edit outside the bot's userspace
+	 * @return the module
+	 */
+	public HACBModule createModule(Wiki wiki, boolean noEditMode);
+
+	/**
+	 * @return the least time between two runs of the module, in milliseconds,
+	 * or 0 to run it every time the bot runs
+	 */
+	public long getInterval();
+
+	/**
+	 * @return how long the module may run for, in milliseconds, before it is
+	 * asked to stop (see {@link HACBModule#isStopRequested}), or 0 for no limit
+	 */
+	public long getTimeout();
+}
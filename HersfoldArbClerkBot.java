@@ -4,8 +4,9 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.PrintStream;
-import java.util.ArrayList;
+import java.io.Writer;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
 import java.util.Locale;
@@ -21,10 +22,32 @@ public class HersfoldArbClerkBot{
 	 * Set to true to disable editing outside of the bot's userspace
 	 */
 	private static boolean NO_EDIT_MODE;
+	
+	/**
+	 * Set to true to keep the login session between runs
+	 */
+	private static boolean KEEP_SESSION;
+
+	/**
+	 * If set, edits are only simulated and written out as a diff bundle at
+	 * the end of the run. "true" reads from the wiki as usual; anything else
+	 * is a snapshot directory to read from instead, offline.
+	 */
+	private static String SIMULATE;
+
+	/**
+	 * If set, the directory to record every request and response to, so the
+	 * run can be replayed by SnapshotBenchmark
+	 */
+	private static String RECORD;
 
 	public static final String BOT_PASSWORD_FILE = ".HACBpassword.txt";
 	public static final String BOT_NAME = "HersfoldArbClerkBot";
 	public static final int RETRY_MAX = 2;
+	public static final String SESSION_FILE = ".HACBsession.ser";
+	public static final String DOMAIN = "en.wikipedia.org";
+	public static final String LOG_PREFIX = "HersfoldArbClerkBotLog";
+	public static final String SIMULATION_PREFIX = "HersfoldArbClerkBotSimulation";
 
 	private static Wiki wikipedia = null;
 	private static String password = null;
@@ -60,29 +83,73 @@ public class HersfoldArbClerkBot{
 	}	
 
 	public static void main(String[] args) {
-		if(args.length > 1){
+		if(args.length > 4){
 			System.err.println("Too many arguments, extras will be ignored");
 		}
-		if(args.length == 1){
+		if(args.length >= 1){
 			NO_EDIT_MODE = Boolean.parseBoolean(args[0]);
 			if(NO_EDIT_MODE){
 				System.out.println("Running in no edit mode");
 			}
 		}
+		if(args.length >= 2){
+			KEEP_SESSION = Boolean.parseBoolean(args[1]);
+			if(KEEP_SESSION){
+				System.out.println("Keeping login session between runs");
+			}
+		}
+		if(args.length >= 3 && !args[2].isEmpty() && !args[2].equalsIgnoreCase("false")){
+			SIMULATE = args[2];
+			// the simulation stands in for no edit mode, and there is
+			// nothing to log in for
+			NO_EDIT_MODE = false;
+			KEEP_SESSION = false;
+			System.out.println("Simulating edits" + (SIMULATE.equalsIgnoreCase("true") ? "" : " offline from " + SIMULATE));
+		}
+		if(args.length >= 4 && !args[3].isEmpty()){
+			RECORD = args[3];
+			// the recording must include logging in, for replays
+			KEEP_SESSION = false;
+			System.out.println("Recording requests to " + RECORD);
+		}
 		
-		wikipedia = new Wiki("en.wikipedia.org");
+		if(SIMULATE == null){
+			wikipedia = new Wiki(DOMAIN);
+		}
+		else if(SIMULATE.equalsIgnoreCase("true")){
+			wikipedia = new SimulatedWiki(DOMAIN);
+		}
+		else{
+			File snapshot = new File(SIMULATE);
+			if(!snapshot.isDirectory()){
+				System.err.println("ERROR - Snapshot directory " + SIMULATE + " not found!");
+				System.exit(-3);
+			}
+			wikipedia = new SimulatedWiki(DOMAIN, snapshot);
+		}
+		WikiSnapshot recording = null;
+		if(RECORD != null){
+			try{
+				recording = WikiSnapshot.record(new File(RECORD));
+				wikipedia.setSnapshot(recording);
+			}
+			catch(IOException e){
+				System.err.println("ERROR - Cannot record to " + RECORD + ": " + e.getMessage());
+				System.exit(-3);
+			}
+		}
+		SessionStore sessions = new SessionStore(new File(SESSION_FILE));
 
-		// Transfer output to log file
-		File logFile = new File("HersfoldArbClerkBotLog " + currentTimestamp() + ".txt");
-		PrintStream output = null;
+		// Transfer output to log file. Writing happens in the background, so
+		// logging never holds up the bot; anything still printed to
+		// System.out or System.err goes to the same log.
+		File logFile = new File(LOG_PREFIX + " " + currentTimestamp() + ".txt");
+		AsyncRunLogger output = null;
 		PrintStream oldOut = System.out;
 		PrintStream oldErr = System.err;
 
 		try{
-			if(!logFile.exists()){
-				logFile.createNewFile();
-			}
-			output = new PrintStream(new FileOutputStream(logFile));
+			output = new AsyncRunLogger(logFile);
 		}
 		catch(IOException e){
 			System.err.println(e.getMessage());
@@ -90,18 +157,20 @@ public class HersfoldArbClerkBot{
 			System.exit(-1);
 		}
 
-		if(output != null){
-			System.setOut(output);
-			System.setErr(output);
-		}
-		else{
-			System.err.println("ERROR! Unable to create output stream.");
-			System.exit(-4);
-		}
+		System.setOut(output.asPrintStream(false));
+		System.setErr(output.asPrintStream(true));
+		output.compressOldLogs(LOG_PREFIX);
 
 		// Set up system and log in
 		try{
-			login();
+			Wiki saved = KEEP_SESSION ? sessions.load(DOMAIN, BOT_NAME) : null;
+			if(saved != null){
+				wikipedia = saved;
+				System.out.println("Resuming saved session.");
+			}
+			else if(SIMULATE == null){
+				login();
+			}
 
 			if(wikipedia.hasNewMessages()){
 				throw new NewMessagesException();
@@ -128,12 +197,7 @@ public class HersfoldArbClerkBot{
 				}
 			}
 			
-			ArrayList<HACBModule> modules = new ArrayList<HACBModule>();
-			modules.add(new HACBEvidenceModule(wikipedia, NO_EDIT_MODE));
-			
-			for(HACBModule module : modules){
-				module.run();
-			}
+			new ModuleScheduler(wikipedia, NO_EDIT_MODE, output).runDue();
 		}
 		catch(NewMessagesException e){
 			System.err.println(e.getMessage());
@@ -149,16 +213,55 @@ public class HersfoldArbClerkBot{
 			e.printStackTrace(oldErr);
 		}
 		finally{
+			if(KEEP_SESSION){
+				try{
+					sessions.save(wikipedia);
+				}
+				catch(IOException e){
+					System.err.println("WARNING: Cannot save session: " + e.getMessage());
+				}
+			}
+			if(wikipedia instanceof SimulatedWiki){
+				writeSimulation((SimulatedWiki)wikipedia);
+			}
 			wikipedia.logout();
-			System.out.println("\n\n");
-			output.close();
+			if(recording != null){
+				try{
+					recording.close();
+				}
+				catch(IOException e){
+					System.err.println("WARNING: Cannot finish recording: " + e.getMessage());
+				}
+			}
 			System.setErr(oldErr);
 			System.setOut(oldOut);
+			output.close();
 		}
 		System.exit(0);
 	}
 
-	public static void attemptLogin(Exception e, String methodName) throws IOException{
+	/**
+	 * Writes the edits a simulated run would have made to a diff bundle
+	 * @param simulation the simulated wiki
+	 */
+	private static void writeSimulation(SimulatedWiki simulation){
+		File bundle = new File(SIMULATION_PREFIX + " " + currentTimestamp() + ".diff");
+		try{
+			Writer out = new OutputStreamWriter(new FileOutputStream(bundle), "UTF-8");
+			try{
+				simulation.writeDiffs(out);
+			}
+			finally{
+				out.close();
+			}
+			System.out.println(simulation.getEdits().size() + " simulated edits written to " + bundle);
+		}
+		catch(IOException e){
+			System.err.println("WARNING: Cannot write simulated edits: " + e.getMessage());
+		}
+	}
+
+	public static synchronized void attemptLogin(Exception e, String methodName) throws IOException{
 		int retryCount = 0;
 		do{
 			System.err.println("BOT IS NOT LOGGED IN!");
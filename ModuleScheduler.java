@@ -0,0 +1,305 @@
+package wiki;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.ServiceLoader;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Runs the bot's modules. Modules are found through their
+ * {@link HACBModuleProvider}s: the built-in ones, plus any listed for
+ * {@link ServiceLoader}. Each module that is due (see
+ * {@link HACBModuleProvider#getInterval()}) is run on its own thread from a
+ * shared pool, so a slow module doesn't hold up the others, and is asked to
+ * stop if it runs past its timeout. Modules that are asked to stop are waited
+ * for, so they can save their work before the bot logs out. The time of each
+ * module's last complete run is kept in {@link #SCHEDULE_FILE}.
+ *
+ * Every module is given the same Wiki, so all their edits go through its one
+ * throttled write queue.
+ */
+public class ModuleScheduler {
+	public static final String SCHEDULE_FILE = "moduleSchedule.txt";
+	/**
+	 * How often to log that a module asked to stop is still running, in
+	 * milliseconds
+	 */
+	public static final long STOP_WAIT = 60 * 1000L;
+
+	/**
+	 * Modules that are always available, whether or not the JAR lists them
+	 */
+	private static final HACBModuleProvider[] BUILT_IN = { new HACBEvidenceModule.Provider() };
+
+	private final Wiki wiki;
+	private final boolean noEditMode;
+	private final RunLogger logger;
+	private final LinkedHashMap<String, HACBModuleProvider> providers = new LinkedHashMap<String, HACBModuleProvider>();
+
+	/**
+	 * @param wiki
+	 *            the wiki, shared by every module
+	 * @param noEditMode
+	 *            true if modules should not edit outside the bot's userspace
+	 */
+	public ModuleScheduler(Wiki wiki, boolean noEditMode) {
+		this(wiki, noEditMode, RunLogger.CONSOLE);
+	}
+
+	/**
+	 * @param wiki
+	 *            the wiki, shared by every module
+	 * @param noEditMode
+	 *            true if modules should not edit outside the bot's userspace
+	 * @param logger
+	 *            the run log, shared by every module
+	 */
+	public ModuleScheduler(Wiki wiki, boolean noEditMode, RunLogger logger) {
+		this.wiki = wiki;
+		this.noEditMode = noEditMode;
+		this.logger = logger;
+		for (HACBModuleProvider provider : BUILT_IN) {
+			providers.put(provider.getName(), provider);
+		}
+		for (HACBModuleProvider provider : ServiceLoader
+				.load(HACBModuleProvider.class)) {
+			if (providers.containsKey(provider.getName())) {
+				continue;
+			}
+			providers.put(provider.getName(), provider);
+		}
+	}
+
+	/**
+	 * @return the providers of every module found, built-in ones first
+	 */
+	public List<HACBModuleProvider> getProviders() {
+		return new ArrayList<HACBModuleProvider>(providers.values());
+	}
+
+	/**
+	 * Runs every module that is due, all at once, and waits for them to
+	 * finish or time out. If any module reports new messages, the others are
+	 * asked to stop.
+	 *
+	 * @throws NewMessagesException
+	 *             if a module found new messages
+	 */
+	public void runDue() throws NewMessagesException {
+		HashMap<String, Long> lastRuns = readSchedule();
+		long now = System.currentTimeMillis();
+		ArrayList<HACBModuleProvider> due = new ArrayList<HACBModuleProvider>();
+		for (HACBModuleProvider provider : providers.values()) {
+			Long lastRun = lastRuns.get(provider.getName());
+			if (lastRun == null || now - lastRun >= provider.getInterval()) {
+				due.add(provider);
+			} else {
+				logger.info("Module " + provider.getName()
+						+ " is not due yet, skipping.");
+			}
+		}
+		run(due, lastRuns, now);
+	}
+
+	/**
+	 * Runs every module, due or not, without reading or updating the
+	 * schedule. For benchmarks and tests.
+	 *
+	 * @throws NewMessagesException
+	 *             if a module found new messages
+	 */
+	public void runAll() throws NewMessagesException {
+		run(getProviders(), null, System.currentTimeMillis());
+	}
+
+	/**
+	 * Runs modules, all at once, and waits for them to finish or time out
+	 *
+	 * @param due
+	 *            the modules to run
+	 * @param lastRuns
+	 *            the schedule to record completed runs in, or null to leave
+	 *            it alone
+	 * @param now
+	 *            when the run started
+	 */
+	private void run(List<HACBModuleProvider> due,
+			HashMap<String, Long> lastRuns, long now)
+			throws NewMessagesException {
+		if (due.isEmpty()) {
+			return;
+		}
+
+		ExecutorService pool = Executors.newCachedThreadPool(new ThreadFactory() {
+			private int count = 0;
+
+			@Override
+			public synchronized Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "HACB module " + (++count));
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		LinkedHashMap<HACBModuleProvider, Future<Void>> running = new LinkedHashMap<HACBModuleProvider, Future<Void>>();
+		HashMap<HACBModuleProvider, HACBModule> modules = new HashMap<HACBModuleProvider, HACBModule>();
+		for (HACBModuleProvider provider : due) {
+			final HACBModule module = provider.createModule(wiki, noEditMode);
+			module.setLogger(logger);
+			modules.put(provider, module);
+			running.put(provider, pool.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws NewMessagesException {
+					module.run();
+					return null;
+				}
+			}));
+		}
+
+		NewMessagesException newMessages = null;
+		try {
+			for (Map.Entry<HACBModuleProvider, Future<Void>> entry : running
+					.entrySet()) {
+				HACBModuleProvider provider = entry.getKey();
+				Future<Void> future = entry.getValue();
+				try {
+					if (provider.getTimeout() > 0) {
+						long left = now + provider.getTimeout()
+								- System.currentTimeMillis();
+						future.get(Math.max(0, left), TimeUnit.MILLISECONDS);
+					} else {
+						future.get();
+					}
+					if (lastRuns != null) {
+						lastRuns.put(provider.getName(), now);
+					}
+				} catch (TimeoutException e) {
+					modules.get(provider).stop();
+					logger.warning("Module " + provider.getName()
+							+ " timed out after " + provider.getTimeout()
+							+ " ms and was asked to stop.");
+				} catch (CancellationException e) {
+					logger.warning("Module " + provider.getName()
+							+ " was stopped.");
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof NewMessagesException) {
+						newMessages = (NewMessagesException) e.getCause();
+						// stop everything else as soon as possible
+						for (HACBModule other : modules.values()) {
+							other.stop();
+						}
+					} else {
+						logger.error("Module " + provider.getName()
+								+ " failed", e.getCause());
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					for (HACBModule other : modules.values()) {
+						other.stop();
+					}
+					break;
+				}
+			}
+		} finally {
+			// modules that were asked to stop may still be saving their work
+			for (Map.Entry<HACBModuleProvider, Future<Void>> entry : running
+					.entrySet()) {
+				awaitStopped(entry.getKey().getName(), entry.getValue());
+			}
+			pool.shutdownNow();
+			if (lastRuns != null) {
+				writeSchedule(lastRuns);
+			}
+			logger.flush();
+		}
+		if (newMessages != null) {
+			throw newMessages;
+		}
+	}
+
+	/**
+	 * Waits for a module to finish, however long it takes, logging every
+	 * {@link #STOP_WAIT} ms that it is still running
+	 */
+	private void awaitStopped(String name, Future<Void> future) {
+		while (true) {
+			try {
+				future.get(STOP_WAIT, TimeUnit.MILLISECONDS);
+				return;
+			} catch (TimeoutException e) {
+				logger.warning("Still waiting for module " + name
+						+ " to stop.");
+			} catch (ExecutionException e) {
+				return; // already reported, or it failed while stopping
+			} catch (CancellationException e) {
+				return;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	private HashMap<String, Long> readSchedule() {
+		HashMap<String, Long> lastRuns = new HashMap<String, Long>();
+		File file = new File(SCHEDULE_FILE);
+		if (!file.exists()) {
+			return lastRuns;
+		}
+		try {
+			Scanner input = new Scanner(new FileInputStream(file), "UTF-8");
+			try {
+				while (input.hasNextLine()) {
+					String[] line = input.nextLine().split("\t");
+					if (line.length == 2) {
+						lastRuns.put(line[0], Long.valueOf(line[1].trim()));
+					}
+				}
+			} finally {
+				input.close();
+			}
+		} catch (IOException e) {
+			logger.warning("Cannot read module schedule " + SCHEDULE_FILE
+					+ ": " + e.getMessage());
+		} catch (NumberFormatException e) {
+			logger.warning("Module schedule " + SCHEDULE_FILE
+					+ " is damaged, running every module.");
+			lastRuns.clear();
+		}
+		return lastRuns;
+	}
+
+	private void writeSchedule(HashMap<String, Long> lastRuns) {
+		try {
+			PrintStream out = new PrintStream(new FileOutputStream(
+					SCHEDULE_FILE), false, "UTF-8");
+			try {
+				for (Map.Entry<String, Long> entry : lastRuns.entrySet()) {
+					out.print(entry.getKey() + "\t" + entry.getValue() + "\n");
+				}
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			logger.warning("Cannot write module schedule " + SCHEDULE_FILE
+					+ ": " + e.getMessage());
+		}
+	}
+}
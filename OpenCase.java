@@ -0,0 +1,169 @@
+package wiki;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import wiki.wikitext.Template;
+import wiki.wikitext.Wikitext;
+import wiki.wikitext.WikitextCache;
+
+/**
+ * One entry in the list of open Arbitration cases, as given by a
+ * <tt>{{ArbComOpenTasks/line ...}}</tt> call on
+ * [[Template:ArbComOpenTasks/Cases]].
+ *
+ * The entries are the template calls found by {@link Wikitext}, so pipes and
+ * equals signs inside nested templates or links belong to the parameter they
+ * appear in, and a parameter value containing "name=" can't be mistaken for
+ * the name parameter. Calls inside comments and nowiki tags don't count.
+ */
+public class OpenCase implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private final String name;
+	private final String mode;
+	private final Map<String, String> params;
+
+	private OpenCase(Map<String, String> params) {
+		this.params = Collections.unmodifiableMap(params);
+		String name = params.get(HACBModule.OPEN_TASKS_NAME);
+		String mode = params.get(HACBModule.OPEN_TASKS_MODE);
+		this.name = name == null ? "" : name;
+		this.mode = mode == null ? "" : mode;
+	}
+
+	/**
+	 * Gets the open cases, unless the cached list is of the current revision
+	 * of the page
+	 *
+	 * @param wiki
+	 *            the wiki
+	 * @param parsed
+	 *            parsed pages; the page is taken from here if this revision
+	 *            has already been parsed, and added if not
+	 * @param page
+	 *            the page listing the open cases
+	 * @param cacheFile
+	 *            where to keep the parsed list between runs
+	 * @param logger
+	 *            where to report cache problems
+	 * @return the open cases, in the order they are listed
+	 * @throws IOException
+	 *             if the page cannot be fetched
+	 */
+	public static List<OpenCase> load(Wiki wiki, WikitextCache parsed,
+			String page, File cacheFile, RunLogger logger) throws IOException {
+		long revision = wiki.getCurrentRevisionIds(page)[0];
+
+		CachedList cached = CacheFile.read(cacheFile, CachedList.class,
+				"open case cache", logger);
+		if (cached != null && revision != 0 && cached.revision == revision) {
+			return cached.cases;
+		}
+
+		Wikitext text = parsed.get(page, revision);
+		if (text == null) {
+			text = parsed.put(page, revision, wiki.getPageText(page));
+		}
+		List<OpenCase> cases = parse(text);
+		CacheFile.write(cacheFile, new CachedList(revision, cases),
+				"open case cache", logger);
+		return cases;
+	}
+
+	/**
+	 * Finds all the open case entries in the given wikitext
+	 *
+	 * @param text
+	 *            the wikitext
+	 * @return the open cases, in the order they are listed
+	 */
+	public static List<OpenCase> parse(String text) {
+		return parse(new Wikitext(text));
+	}
+
+	/**
+	 * Finds all the open case entries on a page
+	 *
+	 * @param page
+	 *            the page, parsed
+	 * @return the open cases, in the order they are listed
+	 */
+	public static List<OpenCase> parse(Wikitext page) {
+		ArrayList<OpenCase> cases = new ArrayList<OpenCase>();
+		for (Template template : page.getTemplates(HACBModule.OPEN_TASKS_LINE
+				.substring(2))) {
+			LinkedHashMap<String, String> params = new LinkedHashMap<String, String>();
+			for (Map.Entry<String, String> param : template.getParams()
+					.entrySet()) {
+				// unnamed parameters aren't trimmed by the parser
+				params.put(param.getKey(), param.getValue().trim());
+			}
+			cases.add(new OpenCase(params));
+		}
+		return cases;
+	}
+
+	/**
+	 * @return the case name
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the stage the case is at, e.g. "evidence" or "review"
+	 */
+	public String getMode() {
+		return mode;
+	}
+
+	/**
+	 * @return true if this is a case review rather than a case
+	 */
+	public boolean isReview() {
+		return mode.equalsIgnoreCase("review");
+	}
+
+	/**
+	 * @param key
+	 *            the name of a parameter
+	 * @return its value, or null if it wasn't given
+	 */
+	public String getParam(String key) {
+		return params.get(key);
+	}
+
+	/**
+	 * @return all the parameters given, in order
+	 */
+	public Map<String, String> getParams() {
+		return params;
+	}
+
+	@Override
+	public String toString() {
+		return "OpenCase" + params;
+	}
+
+	/**
+	 * The open cases as of a revision of the page listing them
+	 */
+	private static class CachedList implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private final long revision;
+		private final List<OpenCase> cases;
+
+		private CachedList(long revision, List<OpenCase> cases) {
+			this.revision = revision;
+			this.cases = cases;
+		}
+	}
+}
@@ -0,0 +1,451 @@
+package wiki;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.security.auth.login.LoginException;
+
+import wiki.wikitext.Section;
+import wiki.wikitext.Wikitext;
+import wiki.wikitext.WikitextCache;
+
+/**
+ * Collects changes to several sections of one page and saves them as a single
+ * edit, instead of one edit per section. The page is read once, sections are
+ * read from that copy and changed in it, and the whole page is written back
+ * when {@link #commit()} is called.
+ *
+ * Before writing, the page's current revision is checked against the one
+ * that was read, and the edit is sent with that revision as its base, so the
+ * server refuses it if someone else got in first. Either way the page is
+ * read again and each change is carried over: to the section that still has
+ * the text the change was made from, or, if that section was edited in the
+ * meantime, merged with the other edit (see
+ * {@link TextDiff#merge(String, String, String)}). Changes that can't be
+ * merged are dropped, for the next run to redo.
+ */
+public class PageEdit {
+	/**
+	 * How many times to try saving when other edits keep getting in first
+	 */
+	public static final int MAX_ATTEMPTS = 3;
+
+	private final Wiki wiki;
+	private final String title;
+	private final WikitextCache cache;
+	private long baseRevision;
+	private String baseTimestamp;
+	private String text;
+	private Wikitext page;
+	private final TreeMap<Integer, Change> changes = new TreeMap<Integer, Change>();
+	// sections, numbered as they were, whose changes are on the page
+	private final List<Integer> applied = new ArrayList<Integer>();
+
+	/**
+	 * Reads a page to edit
+	 *
+	 * @param wiki
+	 *            the wiki
+	 * @param title
+	 *            the page
+	 * @throws FileNotFoundException
+	 *             if the page doesn't exist
+	 * @throws IOException
+	 *             if a network error occurs
+	 */
+	public PageEdit(Wiki wiki, String title) throws IOException {
+		this(wiki, title, null);
+	}
+
+	/**
+	 * Reads a page to edit, sharing the parsed page through a cache
+	 *
+	 * @param wiki
+	 *            the wiki
+	 * @param title
+	 *            the page
+	 * @param cache
+	 *            where to keep the parsed page, or null
+	 * @throws FileNotFoundException
+	 *             if the page doesn't exist
+	 * @throws IOException
+	 *             if a network error occurs
+	 */
+	public PageEdit(Wiki wiki, String title, WikitextCache cache)
+			throws IOException {
+		this.wiki = wiki;
+		this.title = title;
+		this.cache = cache;
+		load();
+	}
+
+	/**
+	 * Reads the page. The revision is read first, so if the page changes in
+	 * between, the check in commit() finds it.
+	 */
+	private void load() throws IOException {
+		baseRevision = wiki.getCurrentRevisionIds(title)[0];
+		String current = wiki.getPageTexts(title)[0];
+		if (current == null) {
+			throw new FileNotFoundException(title);
+		}
+		baseTimestamp = wiki.getBaseTimestamp(title);
+		text = current;
+		page = cache == null ? new Wikitext(current) : cache.put(title,
+				baseRevision, current);
+	}
+
+	/**
+	 * @return the page
+	 */
+	public String getTitle() {
+		return title;
+	}
+
+	/**
+	 * @return the revision the changes are based on
+	 */
+	public long getBaseRevision() {
+		return baseRevision;
+	}
+
+	/**
+	 * Gets the text of a section, as the server would give it for a section
+	 * edit: from its heading to the next heading of the same or a higher
+	 * level, without trailing whitespace. Changes made so far are not
+	 * included.
+	 *
+	 * @param number
+	 *            the section number, 0 for the text before the first heading
+	 * @return the text, or null if the page has no such section
+	 */
+	public String getSectionText(int number) {
+		int[] bounds = bounds(number);
+		return bounds == null ? null : text.substring(bounds[0], bounds[1]);
+	}
+
+	/**
+	 * Gets a section of the page as read. Its templates, links and so on can
+	 * be found with {@link Section#within}; their positions are in the whole
+	 * page, not the section.
+	 *
+	 * @param number
+	 *            the section number, from 1
+	 * @return the section, or null if the page has no such section
+	 */
+	public Section getSection(int number) {
+		return page.getSection(number);
+	}
+
+	/**
+	 * @param number
+	 *            the section number, from 1
+	 * @return the section's heading, without the equals signs, or null if
+	 *         the page has no such section
+	 */
+	public String getHeading(int number) {
+		Section section = page.getSection(number);
+		return section == null ? null : section.getTitle();
+	}
+
+	/**
+	 * Changes the text of a section. Nothing is saved until
+	 * {@link #commit()}. Setting a section to its current text does nothing.
+	 * A section can't be changed along with one of its subsections or the
+	 * section it is part of, as one change would overwrite the other; the
+	 * second change is refused.
+	 *
+	 * @param number
+	 *            the section number, 0 for the text before the first heading
+	 * @param newText
+	 *            the new text of the section, heading included
+	 * @param summary
+	 *            what the change does, for the edit summary
+	 * @param minor
+	 *            whether the change is minor; the edit is only marked minor
+	 *            if every change is
+	 * @return false if the change was refused because a section overlapping
+	 *         this one has already been changed
+	 * @throws IllegalArgumentException
+	 *             if the page has no such section
+	 */
+	public boolean replaceSection(int number, String newText, String summary,
+			boolean minor) {
+		String oldText = getSectionText(number);
+		if (oldText == null) {
+			throw new IllegalArgumentException(title + " has no section "
+					+ number);
+		}
+		if (newText.equals(oldText)) {
+			changes.remove(number);
+			return true;
+		}
+		if (overlaps(number)) {
+			return false;
+		}
+		changes.put(number, new Change(number, oldText, newText, summary,
+				minor));
+		return true;
+	}
+
+	/**
+	 * @return the sections with changes waiting to be saved, numbered as they
+	 *         were when the changes were made
+	 */
+	public List<Integer> getChangedSections() {
+		List<Integer> numbers = new ArrayList<Integer>();
+		for (Change change : changes.values()) {
+			numbers.add(change.section);
+		}
+		return numbers;
+	}
+
+	/**
+	 * @return true if there is anything to save
+	 */
+	public boolean hasChanges() {
+		return !changes.isEmpty();
+	}
+
+	/**
+	 * @return the whole page with every change made so far
+	 */
+	public String getNewText() {
+		StringBuilder out = new StringBuilder(text.length() + 256
+				* changes.size());
+		int position = 0;
+		for (Map.Entry<Integer, Change> entry : changes.entrySet()) {
+			int[] bounds = bounds(entry.getKey());
+			if (bounds[0] < position) {
+				// replaceSection() and rebase() never let this happen
+				throw new IllegalStateException("Overlapping changes to "
+						+ title + " at section " + entry.getKey());
+			}
+			out.append(text, position, bounds[0]);
+			out.append(entry.getValue().newText);
+			position = bounds[1];
+		}
+		out.append(text, position, text.length());
+		return out.toString();
+	}
+
+	/**
+	 * Saves every change as one edit, if there are any. Changes that someone
+	 * else edited first and that couldn't be merged are dropped; they are
+	 * the ones in {@link #getChangedSections()} that aren't returned.
+	 *
+	 * @return the sections whose changes are now on the page, numbered as
+	 *         they were when the changes were made; including those another
+	 *         edit had already made
+	 * @throws EditConflictException
+	 *             if other edits got in first {@link #MAX_ATTEMPTS} times
+	 * @throws IOException
+	 *             if a network error occurs
+	 * @throws LoginException
+	 *             if the bot isn't logged in, or can't edit the page. The
+	 *             changes are kept, so commit() can be called again.
+	 */
+	public List<Integer> commit() throws IOException, LoginException {
+		for (int attempt = 1; !changes.isEmpty(); attempt++) {
+			if (wiki.getCurrentRevisionIds(title)[0] != baseRevision) {
+				rebase();
+				if (changes.isEmpty()) {
+					break;
+				}
+			}
+			try {
+				List<Integer> sent = getChangedSections();
+				save();
+				applied.addAll(sent);
+				break;
+			} catch (EditConflictException e) {
+				if (attempt == MAX_ATTEMPTS) {
+					throw e;
+				}
+				// someone got in between the check and the edit
+				baseRevision = -1;
+			}
+		}
+		List<Integer> saved = new ArrayList<Integer>(applied);
+		applied.clear();
+		return saved;
+	}
+
+	/**
+	 * Sends the edit, based on the revision that was read
+	 */
+	private void save() throws IOException, LoginException {
+		LinkedHashSet<String> summaries = new LinkedHashSet<String>();
+		boolean minor = true;
+		for (Change change : changes.values()) {
+			summaries.add(change.summary);
+			minor &= change.minor;
+		}
+		StringBuilder summary = new StringBuilder();
+		for (String part : summaries) {
+			if (summary.length() > 0) {
+				summary.append("; ");
+			}
+			summary.append(part);
+		}
+
+		String newText = getNewText();
+		wiki.edit(title, newText, summary.toString(), minor, -2,
+				baseTimestamp);
+
+		// what we wrote is now the base for any further changes
+		changes.clear();
+		text = newText;
+		page = new Wikitext(newText);
+		baseRevision = wiki.getCurrentRevisionIds(title)[0];
+		baseTimestamp = null;
+		if (cache != null) {
+			// the revision read before the edit is out of date
+			cache.remove(title);
+		}
+	}
+
+	/**
+	 * Reads the page again and carries each change over: to the section that
+	 * still has the text the change was made from, or else merged into the
+	 * section with the same heading. Changes that can't be carried over are
+	 * dropped.
+	 */
+	private void rebase() throws IOException {
+		TreeMap<Integer, Change> old = new TreeMap<Integer, Change>(changes);
+		changes.clear();
+		load();
+		for (Map.Entry<Integer, Change> entry : old.entrySet()) {
+			Change change = entry.getValue();
+			int number = find(change.oldText, entry.getKey());
+			if (number >= 0) {
+				if (!changes.containsKey(number) && !overlaps(number)) {
+					changes.put(number, change);
+				}
+				continue;
+			}
+			if (find(change.newText, entry.getKey()) >= 0) {
+				applied.add(change.section); // our change is already there
+				continue;
+			}
+			number = findHeading(change.oldText, entry.getKey());
+			String merged = null;
+			if (number >= 0) {
+				String current = getSectionText(number);
+				merged = TextDiff.merge(change.oldText, change.newText, current);
+			}
+			if (merged != null && merged.equals(getSectionText(number))) {
+				applied.add(change.section); // the other edit made the same change
+				continue;
+			}
+			if (merged != null && !changes.containsKey(number)
+					&& !overlaps(number)) {
+				changes.put(number, new Change(change.section,
+						getSectionText(number), merged, change.summary,
+						change.minor));
+			}
+		}
+	}
+
+	/**
+	 * @return true if a changed section other than this one overlaps it:
+	 *         contains it or is contained in it
+	 */
+	private boolean overlaps(int number) {
+		int[] bounds = bounds(number);
+		for (int other : changes.keySet()) {
+			if (other != number) {
+				int[] changed = bounds(other);
+				if (bounds[0] < changed[1] && changed[0] < bounds[1]) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the number of the section with the same heading line as this
+	 *         text, trying the given number first, or -1 if there isn't one
+	 */
+	private int findHeading(String sectionText, int likely) {
+		String heading = firstLine(sectionText);
+		String at = getSectionText(likely);
+		if (at != null && firstLine(at).equals(heading)) {
+			return likely;
+		}
+		for (Section section : page.getSections()) {
+			if (firstLine(getSectionText(section.getNumber())).equals(heading)) {
+				return section.getNumber();
+			}
+		}
+		return -1;
+	}
+
+	private static String firstLine(String text) {
+		int newline = text.indexOf('\n');
+		return newline < 0 ? text : text.substring(0, newline);
+	}
+
+	/**
+	 * @return the number of the section with exactly this text, trying the
+	 *         given number first, or -1 if there isn't one
+	 */
+	private int find(String sectionText, int likely) {
+		if (sectionText.equals(getSectionText(likely))) {
+			return likely;
+		}
+		for (Section section : page.getSections()) {
+			if (sectionText.equals(getSectionText(section.getNumber()))) {
+				return section.getNumber();
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return where a section starts and where its text ends, leaving out
+	 *         trailing whitespace, or null if there is no such section
+	 */
+	private int[] bounds(int number) {
+		int start, end;
+		if (number == 0) {
+			start = 0;
+			end = page.getLead().length();
+		} else {
+			Section section = page.getSection(number);
+			if (section == null) {
+				return null;
+			}
+			start = section.getStart();
+			end = section.getEnd();
+		}
+		while (end > start && Character.isWhitespace(text.charAt(end - 1))) {
+			end--;
+		}
+		return new int[] { start, end };
+	}
+
+	private static final class Change {
+		// the section number when the change was made
+		private final int section;
+		private final String oldText;
+		private final String newText;
+		private final String summary;
+		private final boolean minor;
+
+		private Change(int section, String oldText, String newText,
+				String summary, boolean minor) {
+			this.section = section;
+			this.oldText = oldText;
+			this.newText = newText;
+			this.summary = summary;
+			this.minor = minor;
+		}
+	}
+}
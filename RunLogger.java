@@ -0,0 +1,62 @@
+package wiki;
+
+/**
+ * Where modules report what they are doing during a run. Implementations
+ * must be safe to use from several threads at once, and should return
+ * quickly; see {@link AsyncRunLogger}.
+ */
+public interface RunLogger {
+
+	/**
+	 * Logs to System.out and System.err, for when there is no run log
+	 */
+	public static final RunLogger CONSOLE = new RunLogger() {
+		@Override
+		public void info(String message) {
+			System.out.println(message);
+		}
+
+		@Override
+		public void warning(String message) {
+			System.err.println("WARNING: " + message);
+		}
+
+		@Override
+		public void error(String message, Throwable t) {
+			System.err.println("ERROR: " + message);
+			if (t != null) {
+				t.printStackTrace(System.err);
+			}
+		}
+
+		@Override
+		public void flush() {
+			System.out.flush();
+			System.err.flush();
+		}
+	};
+
+	/**
+	 * Logs normal progress
+	 * @param message the message
+	 */
+	public void info(String message);
+
+	/**
+	 * Logs a problem the run can carry on from
+	 * @param message the message
+	 */
+	public void warning(String message);
+
+	/**
+	 * Logs an error
+	 * @param message the message
+	 * @param t the cause, or null
+	 */
+	public void error(String message, Throwable t);
+
+	/**
+	 * Waits until everything logged so far has been written out
+	 */
+	public void flush();
+}
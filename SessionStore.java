@@ -0,0 +1,138 @@
+package wiki;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.URLDecoder;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+
+/**
+ * Keeps the bot's logged in session between runs, so that it doesn't have to
+ * log in every time. The saved session holds the login cookies, the bot's
+ * user rights and the namespace list (see Wiki's writeObject), so the file is
+ * only readable by its owner. A saved session is only used after the wiki
+ * has confirmed it is still valid.
+ */
+public class SessionStore {
+	private final File file;
+
+	/**
+	 * @param file
+	 *            where to keep the session
+	 */
+	public SessionStore(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Picks up the saved session, if there is one and it is still valid
+	 *
+	 * @param domain
+	 *            the wiki the session must be for
+	 * @param userName
+	 *            the user the session must be for
+	 * @return the logged in wiki, or null if the bot needs to log in
+	 */
+	public Wiki load(String domain, String userName) {
+		if (!file.exists()) {
+			return null;
+		}
+		Wiki wiki;
+		try {
+			ObjectInputStream in = new ObjectInputStream(new FileInputStream(
+					file));
+			try {
+				wiki = (Wiki) in.readObject();
+			} finally {
+				in.close();
+			}
+		} catch (Exception e) {
+			System.err.println("WARNING: Cannot read saved session " + file
+					+ ": " + e.getMessage());
+			clear();
+			return null;
+		}
+
+		try {
+			Wiki.User user = wiki.getCurrentUser();
+			if (!domain.equals(wiki.getDomain()) || user == null
+					|| !userName.equals(URLDecoder.decode(user.getUsername(),
+							"UTF-8"))) {
+				System.err.println("WARNING: Saved session " + file
+						+ " is for a different wiki or user, ignoring it.");
+				clear();
+				return null;
+			}
+			if (!wiki.checkSession()) {
+				System.out.println("Saved session has expired.");
+				clear();
+				return null;
+			}
+		} catch (IOException e) {
+			System.err.println("WARNING: Cannot check saved session: "
+					+ e.getMessage());
+			return null;
+		}
+		return wiki;
+	}
+
+	/**
+	 * Saves the session of a logged in wiki. The file is written in full
+	 * before it replaces the old one, and only its owner can read it.
+	 *
+	 * @param wiki
+	 *            the wiki
+	 * @throws IOException
+	 *             if the session cannot be saved
+	 */
+	public void save(Wiki wiki) throws IOException {
+		if (wiki.getCurrentUser() == null) {
+			clear();
+			return;
+		}
+		File dir = file.getAbsoluteFile().getParentFile();
+		File temp;
+		if (FileSystems.getDefault().supportedFileAttributeViews().contains(
+				"posix")) {
+			temp = Files.createTempFile(dir.toPath(), file.getName(), ".tmp",
+					PosixFilePermissions.asFileAttribute(PosixFilePermissions
+							.fromString("rw-------"))).toFile();
+		} else {
+			temp = File.createTempFile(file.getName(), ".tmp", dir);
+			temp.setReadable(false, false);
+			temp.setWritable(false, false);
+			temp.setReadable(true, true);
+			temp.setWritable(true, true);
+		}
+
+		try {
+			ObjectOutputStream out = new ObjectOutputStream(
+					new FileOutputStream(temp));
+			try {
+				out.writeObject(wiki);
+			} finally {
+				out.close();
+			}
+			Files.move(temp.toPath(), file.toPath(),
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			temp.delete();
+		}
+	}
+
+	/**
+	 * Forgets the saved session
+	 */
+	public void clear() {
+		if (file.exists() && !file.delete()) {
+			System.err.println("WARNING: Cannot delete saved session " + file);
+		}
+	}
+}
@@ -0,0 +1,533 @@
+package wiki;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import javax.security.auth.login.LoginException;
+
+import wiki.wikitext.Section;
+import wiki.wikitext.Template;
+import wiki.wikitext.Wikitext;
+
+/**
+ * A Wiki that never writes. Every edit is recorded and kept in an overlay, so
+ * later reads in the same run see the page as it would be after the edit,
+ * and at the end of the run the edits can be written out as a diff bundle
+ * for review (see {@link #writeDiffs(Writer)}).
+ *
+ * Pages are read from the wiki as usual, or, when the wiki is given a
+ * snapshot directory, only from there, so that a run can be replayed offline.
+ * A snapshot directory holds one UTF-8 file per page, named by
+ * {@link #snapshotFile(File, String)}. Offline, a page's revision id is made
+ * up from its text, every user exists and there are never new messages.
+ *
+ * Only the reads and writes the bot uses are simulated. Anything else still
+ * goes to the wiki, or fails offline.
+ */
+public class SimulatedWiki extends Wiki {
+	private static final long serialVersionUID = 1L;
+
+	public static final String SNAPSHOT_EXTENSION = ".wiki";
+
+	private final File snapshot;
+	private final HashMap<String, String> overlay = new HashMap<String, String>();
+	private final ArrayList<SimulatedEdit> edits = new ArrayList<SimulatedEdit>();
+
+	/**
+	 * Simulates edits to a live wiki, reading from it as usual
+	 *
+	 * @param domain
+	 *            the wiki's domain name
+	 */
+	public SimulatedWiki(String domain) {
+		this(domain, null);
+	}
+
+	/**
+	 * Simulates a wiki
+	 *
+	 * @param domain
+	 *            the wiki's domain name
+	 * @param snapshot
+	 *            the snapshot directory to read pages from, or null to read
+	 *            from the wiki
+	 */
+	public SimulatedWiki(String domain, File snapshot) {
+		super(domain);
+		this.snapshot = snapshot;
+	}
+
+	/**
+	 * Gives the file a page is kept in within a snapshot directory
+	 *
+	 * @param directory
+	 *            the snapshot directory
+	 * @param title
+	 *            the page
+	 * @return the file, which need not exist
+	 */
+	public static File snapshotFile(File directory, String title) {
+		try {
+			return new File(directory, URLEncoder.encode(title, "UTF-8")
+					+ SNAPSHOT_EXTENSION);
+		} catch (UnsupportedEncodingException e) {
+			throw new AssertionError(e); // UTF-8 is always there
+		}
+	}
+
+	/**
+	 * @return true if pages are read only from a snapshot directory
+	 */
+	public boolean isOffline() {
+		return snapshot != null;
+	}
+
+	/**
+	 * @return every edit made so far, in order
+	 */
+	public List<SimulatedEdit> getEdits() {
+		synchronized (overlay) {
+			return new ArrayList<SimulatedEdit>(edits);
+		}
+	}
+
+	/**
+	 * Writes every edit made so far as a unified diff, with a comment line
+	 * before each giving the section and edit summary
+	 *
+	 * @param out
+	 *            where to write
+	 * @throws IOException
+	 *             if writing fails
+	 */
+	public void writeDiffs(Writer out) throws IOException {
+		List<SimulatedEdit> all = getEdits();
+		for (int i = 0; i < all.size(); i++) {
+			SimulatedEdit edit = all.get(i);
+			out.write("# Edit " + (i + 1) + " of " + all.size() + ": "
+					+ edit.getTitle() + describeSection(edit.getSection())
+					+ ", summary \"" + edit.getSummary() + "\""
+					+ (edit.isMinor() ? ", minor" : "") + "\n");
+			String diff = TextDiff.unified("a/" + edit.getTitle(), "b/"
+					+ edit.getTitle(), edit.getOldText(), edit.getNewText());
+			out.write(diff.isEmpty() ? "# (no change)\n" : diff);
+			out.write("\n");
+		}
+		out.flush();
+	}
+
+	private static String describeSection(int section) {
+		if (section == -1) {
+			return ", new section";
+		}
+		if (section == -2) {
+			return "";
+		}
+		return ", section " + section;
+	}
+
+	/**
+	 * Records the edit instead of making it. The returned future is already
+	 * done. There are no edit conflicts; the base revision is ignored.
+	 */
+	@Override
+	public Future<Void> editAsync(String title, String text, String summary,
+			boolean minor, int section, String basetimestamp)
+			throws IOException, LoginException {
+		synchronized (overlay) {
+			String before = currentText(title);
+			String after = apply(title, before, text, summary, section);
+			overlay.put(title, after);
+			edits.add(new SimulatedEdit(title, section, summary, minor, before,
+					after));
+		}
+		FutureTask<Void> done = new FutureTask<Void>(new Runnable() {
+			@Override
+			public void run() {
+			}
+		}, null);
+		done.run();
+		return done;
+	}
+
+	/**
+	 * Works out the whole page after an edit, the way the server would
+	 */
+	private static String apply(String title, String before, String text,
+			String summary, int section) throws IOException {
+		if (section == -2) {
+			return text;
+		}
+		String page = before == null ? "" : before;
+		if (section == -1) {
+			String added = "== " + summary + " ==\n\n" + text;
+			return page.isEmpty() ? added : trimEnd(page) + "\n\n" + added;
+		}
+		if (section == 0) {
+			String lead = new Wikitext(page).getLead();
+			return trimEnd(text) + joiner(page, lead.length())
+					+ page.substring(lead.length());
+		}
+		Section replaced = new Wikitext(page).getSection(section);
+		if (replaced == null) {
+			throw new IOException("Cannot edit section " + section + " of "
+					+ title + ": no such section");
+		}
+		return page.substring(0, replaced.getStart()) + trimEnd(text)
+				+ joiner(page, replaced.getEnd())
+				+ page.substring(replaced.getEnd());
+	}
+
+	private static String joiner(String page, int position) {
+		return position < page.length() ? "\n\n" : "";
+	}
+
+	private static String trimEnd(String text) {
+		int end = text.length();
+		while (end > 0 && Character.isWhitespace(text.charAt(end - 1))) {
+			end--;
+		}
+		return text.substring(0, end);
+	}
+
+	/**
+	 * @return the text of a page with the overlay applied, or null if the
+	 *         page doesn't exist. Callers hold the overlay lock.
+	 */
+	private String currentText(String title) throws IOException {
+		if (overlay.containsKey(title)) {
+			return overlay.get(title);
+		}
+		return baseTexts(title)[0];
+	}
+
+	/**
+	 * Reads pages from the snapshot or the wiki, without the overlay
+	 */
+	private String[] baseTexts(String... titles) throws IOException {
+		if (snapshot == null) {
+			return titles.length == 0 ? new String[0] : super
+					.getPageTexts(titles);
+		}
+		String[] texts = new String[titles.length];
+		for (int i = 0; i < titles.length; i++) {
+			texts[i] = readSnapshot(titles[i]);
+		}
+		return texts;
+	}
+
+	private String readSnapshot(String title) throws IOException {
+		File file = snapshotFile(snapshot, title);
+		if (!file.exists()) {
+			return null;
+		}
+		StringBuilder text = new StringBuilder((int) file.length());
+		Reader in = new InputStreamReader(new FileInputStream(file), "UTF-8");
+		try {
+			char[] chunk = new char[8192];
+			int read;
+			while ((read = in.read(chunk)) > 0) {
+				text.append(chunk, 0, read);
+			}
+		} finally {
+			in.close();
+		}
+		return text.toString();
+	}
+
+	/**
+	 * @return whether a page is answered here rather than by the wiki
+	 */
+	private boolean isLocal(String title) {
+		synchronized (overlay) {
+			return snapshot != null || overlay.containsKey(title);
+		}
+	}
+
+	/**
+	 * Makes up a revision id that changes when the text does, so that caches
+	 * keyed by revision see simulated edits
+	 */
+	private static long localRevisionId(String text) {
+		return text == null ? 0L : (text.hashCode() & 0xffffffffL) + 1;
+	}
+
+	@Override
+	public String[] getPageTexts(String... titles) throws IOException {
+		String[] texts = new String[titles.length];
+		ArrayList<Integer> remote = new ArrayList<Integer>();
+		synchronized (overlay) {
+			for (int i = 0; i < titles.length; i++) {
+				if (overlay.containsKey(titles[i])) {
+					texts[i] = overlay.get(titles[i]);
+				} else {
+					remote.add(i);
+				}
+			}
+		}
+		String[] rest = new String[remote.size()];
+		for (int i = 0; i < rest.length; i++) {
+			rest[i] = titles[remote.get(i)];
+		}
+		rest = baseTexts(rest);
+		for (int i = 0; i < rest.length; i++) {
+			texts[remote.get(i)] = rest[i];
+		}
+		return texts;
+	}
+
+	@Override
+	public String getPageText(String title) throws IOException {
+		if (!isLocal(title)) {
+			return super.getPageText(title);
+		}
+		String text = getPageTexts(title)[0];
+		if (text == null) {
+			throw new FileNotFoundException(title);
+		}
+		return text;
+	}
+
+	@Override
+	public String getSectionText(String title, int section) throws IOException {
+		if (!isLocal(title)) {
+			return super.getSectionText(title, section);
+		}
+		Wikitext page = new Wikitext(getPageText(title));
+		if (section == 0) {
+			return trimEnd(page.getLead());
+		}
+		Section found = page.getSection(section);
+		if (found == null) {
+			throw new FileNotFoundException(title + ", section " + section);
+		}
+		return trimEnd(found.getSource());
+	}
+
+	@Override
+	public long[] getCurrentRevisionIds(String... titles) throws IOException {
+		long[] revisions = new long[titles.length];
+		ArrayList<Integer> remote = new ArrayList<Integer>();
+		for (int i = 0; i < titles.length; i++) {
+			if (isLocal(titles[i])) {
+				revisions[i] = localRevisionId(getPageTexts(titles[i])[0]);
+			} else {
+				remote.add(i);
+			}
+		}
+		if (!remote.isEmpty()) {
+			String[] rest = new String[remote.size()];
+			for (int i = 0; i < rest.length; i++) {
+				rest[i] = titles[remote.get(i)];
+			}
+			long[] fetched = super.getCurrentRevisionIds(rest);
+			for (int i = 0; i < fetched.length; i++) {
+				revisions[remote.get(i)] = fetched[i];
+			}
+		}
+		return revisions;
+	}
+
+	@Override
+	public int[] getPageStatus(int threads, String... titles)
+			throws IOException {
+		int[] status = new int[titles.length];
+		ArrayList<Integer> remote = new ArrayList<Integer>();
+		for (int i = 0; i < titles.length; i++) {
+			if (isLocal(titles[i])) {
+				String text = getPageTexts(titles[i])[0];
+				if (text == null) {
+					status[i] = PAGE_MISSING;
+				} else if (text.regionMatches(true, 0, "#REDIRECT", 0, 9)) {
+					status[i] = PAGE_EXISTS | PAGE_REDIRECT;
+				} else {
+					status[i] = PAGE_EXISTS;
+				}
+			} else {
+				remote.add(i);
+			}
+		}
+		if (!remote.isEmpty()) {
+			String[] rest = new String[remote.size()];
+			for (int i = 0; i < rest.length; i++) {
+				rest[i] = titles[remote.get(i)];
+			}
+			int[] fetched = super.getPageStatus(threads, rest);
+			for (int i = 0; i < fetched.length; i++) {
+				status[remote.get(i)] = fetched[i];
+			}
+		}
+		return status;
+	}
+
+	/**
+	 * Pages in the overlay or snapshot are checked by parsing them, which
+	 * only sees templates called directly on the page.
+	 */
+	@Override
+	public HashMap<String, Object>[] getTemplateUsage(String[] titles,
+			String... templates) throws IOException {
+		HashMap<String, Object>[] usage = newTemplateUsage(titles.length);
+		ArrayList<Integer> remote = new ArrayList<Integer>();
+		for (int i = 0; i < titles.length; i++) {
+			if (!isLocal(titles[i])) {
+				remote.add(i);
+				continue;
+			}
+			String text = getPageTexts(titles[i])[0];
+			HashSet<String> used = new HashSet<String>();
+			if (text != null) {
+				for (Template call : new Wikitext(text).getTemplates()) {
+					for (String template : templates) {
+						if (call.isNamed(template)) {
+							used.add(template);
+						}
+					}
+				}
+			}
+			HashMap<String, Object> info = new HashMap<String, Object>();
+			info.put("exists", text != null);
+			info.put("lastrevid", localRevisionId(text));
+			info.put("size", text == null ? 0 : text.getBytes("UTF-8").length);
+			info.put("templates", used);
+			usage[i] = info;
+		}
+		if (!remote.isEmpty()) {
+			String[] rest = new String[remote.size()];
+			for (int i = 0; i < rest.length; i++) {
+				rest[i] = titles[remote.get(i)];
+			}
+			HashMap<String, Object>[] fetched = super.getTemplateUsage(rest,
+					templates);
+			for (int i = 0; i < fetched.length; i++) {
+				usage[remote.get(i)] = fetched[i];
+			}
+		}
+		return usage;
+	}
+
+	/**
+	 * Pages in the overlay or snapshot are read as they are, without
+	 * expanding what they transclude.
+	 */
+	@Override
+	public HashMap<Integer, String> getLevelTwoHeaders(String pagename)
+			throws IOException {
+		if (!isLocal(pagename)) {
+			return super.getLevelTwoHeaders(pagename);
+		}
+		HashMap<Integer, String> headers = new HashMap<Integer, String>();
+		String text = getPageTexts(pagename)[0];
+		if (text != null) {
+			for (Section section : new Wikitext(text).getSections()) {
+				if (section.getLevel() == 2) {
+					headers.put(section.getNumber(), section.getTitle());
+				}
+			}
+		}
+		return headers;
+	}
+
+	@Override
+	public void prefetchProtection(String... titles) throws IOException {
+		if (snapshot == null) {
+			super.prefetchProtection(titles);
+		}
+	}
+
+	@Override
+	public boolean userExists(String username) throws IOException {
+		return snapshot != null || super.userExists(username);
+	}
+
+	/**
+	 * A simulated run has no talk page to watch
+	 */
+	@Override
+	public boolean hasNewMessages() throws IOException {
+		return false;
+	}
+
+	@Override
+	public boolean hasNewMessages(boolean cached) throws IOException {
+		return false;
+	}
+
+	/**
+	 * An edit that would have been made
+	 */
+	public static class SimulatedEdit {
+		private final String title;
+		private final int section;
+		private final String summary;
+		private final boolean minor;
+		private final String oldText;
+		private final String newText;
+
+		private SimulatedEdit(String title, int section, String summary,
+				boolean minor, String oldText, String newText) {
+			this.title = title;
+			this.section = section;
+			this.summary = summary;
+			this.minor = minor;
+			this.oldText = oldText;
+			this.newText = newText;
+		}
+
+		/**
+		 * @return the page edited
+		 */
+		public String getTitle() {
+			return title;
+		}
+
+		/**
+		 * @return the section edited, -1 for a new section and -2 for the
+		 *         whole page
+		 */
+		public int getSection() {
+			return section;
+		}
+
+		/**
+		 * @return the edit summary, or the heading of a new section
+		 */
+		public String getSummary() {
+			return summary;
+		}
+
+		/**
+		 * @return whether the edit is marked minor
+		 */
+		public boolean isMinor() {
+			return minor;
+		}
+
+		/**
+		 * @return the whole page before the edit, or null if it didn't exist
+		 */
+		public String getOldText() {
+			return oldText;
+		}
+
+		/**
+		 * @return the whole page after the edit
+		 */
+		public String getNewText() {
+			return newText;
+		}
+	}
+}
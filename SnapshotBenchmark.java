@@ -0,0 +1,130 @@
+package wiki;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import javax.security.auth.login.FailedLoginException;
+
+/**
+ * Times the bot's modules against a recorded snapshot (see
+ * {@link WikiSnapshot}), so that two versions of the bot can be compared on
+ * exactly the same input. Record a snapshot by giving the bot a directory as
+ * its fourth argument, then run:
+ *
+ * <pre>
+ * java wiki.SnapshotBenchmark snapshotDirectory [iterations] [latencyScale] [noEditMode]
+ * </pre>
+ *
+ * Every module is run each iteration, whether or not it is due. Use the same
+ * no edit mode the snapshot was recorded in, or the run will make requests
+ * the snapshot doesn't have.
+ *
+ * Modules keep caches in the working directory, which change what they ask
+ * the wiki for. Run the benchmark from a directory holding the same caches
+ * as when the snapshot was recorded, or none. Files created during an
+ * iteration are deleted afterwards, and the caches the modules share in
+ * memory are emptied before each one, so each iteration starts out the same.
+ */
+public class SnapshotBenchmark {
+	public static final int DEFAULT_ITERATIONS = 3;
+
+	public static void main(String[] args) {
+		if (args.length < 1) {
+			System.err.println("Usage: SnapshotBenchmark snapshotDirectory [iterations] [latencyScale] [noEditMode]");
+			System.exit(-1);
+		}
+		File snapshot = new File(args[0]);
+		int iterations = args.length >= 2 ? Integer.parseInt(args[1])
+				: DEFAULT_ITERATIONS;
+		double latencyScale = args.length >= 3 ? Double.parseDouble(args[2])
+				: 0;
+		boolean noEditMode = args.length >= 4 && Boolean.parseBoolean(args[3]);
+
+		long[] times = new long[iterations];
+		try {
+			for (int i = 0; i < iterations; i++) {
+				HashMap<File, Long> before = listWorkingDirectory();
+				HACBModule.clearSharedCaches();
+				HACBEvidenceModule.clearSharedLimits();
+				long start = System.nanoTime();
+				int requests = runOnce(snapshot, latencyScale, noEditMode);
+				times[i] = (System.nanoTime() - start) / 1000000;
+				System.out.println("Iteration " + (i + 1) + ": " + times[i]
+						+ " ms, " + requests + " requests");
+				cleanUp(before);
+			}
+		} catch (IOException e) {
+			System.err.println(e.getMessage());
+			e.printStackTrace(System.err);
+			System.exit(-1);
+		} catch (FailedLoginException e) {
+			System.err.println("Snapshot does not record a successful login.");
+			System.exit(-2);
+		} catch (NewMessagesException e) {
+			System.err.println("Snapshot includes new messages, modules stopped early.");
+			System.exit(-1);
+		}
+
+		long[] sorted = times.clone();
+		Arrays.sort(sorted);
+		long total = 0;
+		for (long time : times) {
+			total += time;
+		}
+		System.out.println("Min " + sorted[0] + " ms, median "
+				+ sorted[sorted.length / 2] + " ms, mean " + total
+				/ times.length + " ms, max " + sorted[sorted.length - 1]
+				+ " ms");
+		System.exit(0);
+	}
+
+	/**
+	 * Logs in and runs every module once, answering every request from the
+	 * snapshot
+	 *
+	 * @return the number of requests made
+	 */
+	private static int runOnce(File directory, double latencyScale,
+			boolean noEditMode) throws IOException, FailedLoginException,
+			NewMessagesException {
+		WikiSnapshot snapshot = WikiSnapshot.replay(directory, latencyScale);
+		Wiki wiki = new Wiki(HersfoldArbClerkBot.DOMAIN);
+		wiki.setSnapshot(snapshot);
+		try {
+			// the password doesn't matter, the recorded answer does
+			wiki.login(HersfoldArbClerkBot.BOT_NAME, new char[0]);
+			new ModuleScheduler(wiki, noEditMode).runAll();
+		} finally {
+			wiki.logout();
+			snapshot.close();
+		}
+		return snapshot.getRequestCount();
+	}
+
+	private static HashMap<File, Long> listWorkingDirectory() {
+		HashMap<File, Long> files = new HashMap<File, Long>();
+		File[] list = new File(".").getAbsoluteFile().listFiles();
+		if (list != null) {
+			for (File file : list) {
+				files.put(file, file.lastModified());
+			}
+		}
+		return files;
+	}
+
+	private static void cleanUp(HashMap<File, Long> before) {
+		for (File file : listWorkingDirectory().keySet()) {
+			if (!before.containsKey(file)) {
+				if (file.isFile() && !file.delete()) {
+					System.err.println("WARNING: Cannot delete " + file
+							+ ", later iterations may differ.");
+				}
+			} else if (before.get(file) != file.lastModified()) {
+				System.err.println("WARNING: " + file.getName()
+						+ " was changed, later iterations may differ.");
+			}
+		}
+	}
+}
@@ -0,0 +1,334 @@
+package wiki;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Line by line differences between two texts, in unified diff format, and
+ * three-way merges of two sets of changes to the same text. The difference
+ * is found with Myers' algorithm, after setting aside the lines the two texts
+ * start and end with in common, which for a typical edit is almost all of
+ * them.
+ */
+public final class TextDiff {
+	/**
+	 * Unchanged lines shown around each change
+	 */
+	public static final int CONTEXT = 3;
+
+	private static final char SAME = ' ', REMOVED = '-', ADDED = '+';
+
+	private TextDiff() {
+	}
+
+	/**
+	 * Compares two texts
+	 *
+	 * @param oldName
+	 *            the label for the old text
+	 * @param newName
+	 *            the label for the new text
+	 * @param oldText
+	 *            the old text, or null if there wasn't any
+	 * @param newText
+	 *            the new text, or null if there isn't any
+	 * @return the differences in unified diff format, or an empty string if
+	 *         the texts are the same
+	 */
+	public static String unified(String oldName, String newName,
+			String oldText, String newText) {
+		List<Line> lines = diff(split(oldText), split(newText));
+		StringBuilder out = new StringBuilder();
+		int i = 0;
+		while (i < lines.size()) {
+			if (lines.get(i).kind == SAME) {
+				i++;
+				continue;
+			}
+			if (out.length() == 0) {
+				out.append("--- ").append(oldName).append('\n');
+				out.append("+++ ").append(newName).append('\n');
+			}
+
+			// take in every change that is close enough to share context
+			int start = Math.max(0, i - CONTEXT);
+			int lastChange = i;
+			for (int j = i; j < lines.size(); j++) {
+				if (lines.get(j).kind != SAME) {
+					lastChange = j;
+				} else if (j - lastChange > 2 * CONTEXT) {
+					break;
+				}
+			}
+			int end = Math.min(lines.size(), lastChange + CONTEXT + 1);
+			hunk(out, lines.subList(start, end));
+			i = end;
+		}
+		return out.toString();
+	}
+
+	/**
+	 * Merges two sets of changes made to the same text, line by line. Changes
+	 * that touch the same or neighbouring lines conflict, unless they are
+	 * the same change.
+	 *
+	 * @param base
+	 *            the text both were changed from
+	 * @param ours
+	 *            one changed text
+	 * @param theirs
+	 *            the other changed text
+	 * @return the text with both sets of changes, or null if they conflict
+	 */
+	public static String merge(String base, String ours, String theirs) {
+		String[] original = base.split("\n", -1);
+		List<Change> mine = changes(diff(original, ours.split("\n", -1)));
+		List<Change> others = changes(diff(original, theirs.split("\n", -1)));
+
+		StringBuilder out = new StringBuilder(theirs.length() + ours.length()
+				- base.length() + 16);
+		int position = 0, i = 0, j = 0;
+		while (i < mine.size() || j < others.size()) {
+			Change next;
+			if (i < mine.size() && j < others.size()) {
+				Change a = mine.get(i), b = others.get(j);
+				if (a.start <= b.end && b.start <= a.end) {
+					if (!a.equals(b)) {
+						return null;
+					}
+					i++;
+					j++;
+					next = a;
+				} else if (a.start < b.start) {
+					i++;
+					next = a;
+				} else {
+					j++;
+					next = b;
+				}
+			} else if (i < mine.size()) {
+				next = mine.get(i++);
+			} else {
+				next = others.get(j++);
+			}
+			for (; position < next.start; position++) {
+				out.append(original[position]).append('\n');
+			}
+			for (String line : next.lines) {
+				out.append(line).append('\n');
+			}
+			position = next.end;
+		}
+		for (; position < original.length; position++) {
+			out.append(original[position]).append('\n');
+		}
+		out.setLength(out.length() - 1); // the split kept the last line
+		return out.toString();
+	}
+
+	/**
+	 * @return the runs of changed lines in a diff, each as the lines of the
+	 *         old text it replaces and what it replaces them with
+	 */
+	private static List<Change> changes(List<Line> lines) {
+		ArrayList<Change> changes = new ArrayList<Change>();
+		Change current = null;
+		for (Line line : lines) {
+			if (line.kind == SAME) {
+				current = null;
+				continue;
+			}
+			if (current == null) {
+				current = new Change(line.oldLine);
+				changes.add(current);
+			}
+			if (line.kind == REMOVED) {
+				current.end = line.oldLine + 1;
+			} else {
+				current.lines.add(line.text);
+			}
+		}
+		return changes;
+	}
+
+	private static void hunk(StringBuilder out, List<Line> lines) {
+		int oldCount = 0, newCount = 0;
+		for (Line line : lines) {
+			if (line.kind != ADDED) {
+				oldCount++;
+			}
+			if (line.kind != REMOVED) {
+				newCount++;
+			}
+		}
+		Line first = lines.get(0);
+		out.append("@@ -").append(oldCount == 0 ? first.oldLine : first.oldLine + 1);
+		out.append(',').append(oldCount);
+		out.append(" +").append(newCount == 0 ? first.newLine : first.newLine + 1);
+		out.append(',').append(newCount).append(" @@\n");
+		for (Line line : lines) {
+			out.append(line.kind).append(line.text).append('\n');
+		}
+	}
+
+	private static String[] split(String text) {
+		if (text == null || text.isEmpty()) {
+			return new String[0];
+		}
+		String[] lines = text.split("\n", -1);
+		if (lines[lines.length - 1].isEmpty()) {
+			return Arrays.copyOf(lines, lines.length - 1);
+		}
+		return lines;
+	}
+
+	/**
+	 * @return every line of both texts, in order, marked as unchanged,
+	 *         removed or added
+	 */
+	private static List<Line> diff(String[] a, String[] b) {
+		int prefix = 0;
+		while (prefix < a.length && prefix < b.length
+				&& a[prefix].equals(b[prefix])) {
+			prefix++;
+		}
+		int suffix = 0;
+		while (suffix < a.length - prefix && suffix < b.length - prefix
+				&& a[a.length - 1 - suffix].equals(b[b.length - 1 - suffix])) {
+			suffix++;
+		}
+
+		ArrayList<Line> lines = new ArrayList<Line>(Math.max(a.length,
+				b.length) + 16);
+		for (int i = 0; i < prefix; i++) {
+			lines.add(new Line(SAME, a[i], i, i));
+		}
+		middle(a, b, prefix, a.length - suffix, prefix, b.length - suffix,
+				lines);
+		for (int i = suffix; i > 0; i--) {
+			lines.add(new Line(SAME, a[a.length - i], a.length - i, b.length
+					- i));
+		}
+		return lines;
+	}
+
+	/**
+	 * Myers' greedy algorithm on a[aStart, aEnd) and b[bStart, bEnd). Each
+	 * round's furthest reaching points are kept so the path can be traced
+	 * back; only the diagonals a round can reach are copied.
+	 */
+	private static void middle(String[] a, String[] b, int aStart, int aEnd,
+			int bStart, int bEnd, List<Line> lines) {
+		int n = aEnd - aStart, m = bEnd - bStart;
+		int max = n + m;
+		int offset = max + 1;
+		int[] v = new int[2 * max + 3];
+		ArrayList<int[]> trace = new ArrayList<int[]>();
+		int rounds = -1;
+		search: for (int d = 0; d <= max; d++) {
+			trace.add(Arrays.copyOfRange(v, offset - d - 1, offset + d + 2));
+			for (int k = -d; k <= d; k += 2) {
+				int x;
+				if (k == -d || (k != d && v[offset + k - 1] < v[offset + k + 1])) {
+					x = v[offset + k + 1];
+				} else {
+					x = v[offset + k - 1] + 1;
+				}
+				int y = x - k;
+				while (x < n && y < m && a[aStart + x].equals(b[bStart + y])) {
+					x++;
+					y++;
+				}
+				v[offset + k] = x;
+				if (x >= n && y >= m) {
+					rounds = d;
+					break search;
+				}
+			}
+		}
+
+		// trace back from the end, collecting lines in reverse
+		ArrayList<Line> reversed = new ArrayList<Line>();
+		int x = n, y = m;
+		for (int d = rounds; d > 0; d--) {
+			int[] previous = trace.get(d);
+			int k = x - y;
+			int previousK;
+			if (k == -d
+					|| (k != d && previous[k - 1 + d + 1] < previous[k + 1 + d + 1])) {
+				previousK = k + 1;
+			} else {
+				previousK = k - 1;
+			}
+			int previousX = previous[previousK + d + 1];
+			int previousY = previousX - previousK;
+			while (x > previousX && y > previousY) {
+				x--;
+				y--;
+				reversed.add(new Line(SAME, a[aStart + x], aStart + x, bStart
+						+ y));
+			}
+			if (x == previousX) {
+				y--;
+				reversed.add(new Line(ADDED, b[bStart + y], aStart + x, bStart
+						+ y));
+			} else {
+				x--;
+				reversed.add(new Line(REMOVED, a[aStart + x], aStart + x,
+						bStart + y));
+			}
+			x = previousX;
+			y = previousY;
+		}
+		while (x > 0 && y > 0) {
+			x--;
+			y--;
+			reversed.add(new Line(SAME, a[aStart + x], aStart + x, bStart + y));
+		}
+		for (int i = reversed.size() - 1; i >= 0; i--) {
+			lines.add(reversed.get(i));
+		}
+	}
+
+	private static final class Change {
+		private final int start;
+		private int end;
+		private final ArrayList<String> lines = new ArrayList<String>();
+
+		private Change(int start) {
+			this.start = start;
+			this.end = start;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (!(other instanceof Change)) {
+				return false;
+			}
+			Change that = (Change) other;
+			return start == that.start && end == that.end
+					&& lines.equals(that.lines);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * (31 * start + end) + lines.hashCode();
+		}
+	}
+
+	private static final class Line {
+		private final char kind;
+		private final String text;
+		// where the line is, or would be, in each text, from 0
+		private final int oldLine;
+		private final int newLine;
+
+		private Line(char kind, String text, int oldLine, int newLine) {
+			this.kind = kind;
+			this.text = text;
+			this.oldLine = oldLine;
+			this.newLine = newLine;
+		}
+	}
+}
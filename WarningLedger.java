@@ -0,0 +1,253 @@
+package wiki;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Records which users have been warned for which cases, and which evidence
+ * sections have been marked as having malformed headers. The two are kept in
+ * separate namespaces (and separate {@link WarningLog} files) so a section
+ * name can never be mistaken for a user or vice versa.
+ *
+ * Everything recorded or found during a run is kept in hash sets of interned
+ * keys, so repeated checks don't touch the disk. New entries are held back
+ * and written to the logs together by {@link #flush()}.
+ *
+ * Section markers used to be written to the warning log, keyed on the
+ * section name. Those are still honoured.
+ */
+public class WarningLedger implements Closeable {
+	private final WarningLog warningLog;
+	private final WarningLog sectionLog;
+
+	private final HashMap<String, String> names = new HashMap<String, String>();
+	private final HashSet<Key> warnings = new HashSet<Key>();
+	private final HashSet<String> warnedUsers = new HashSet<String>();
+	private final HashSet<Key> markers = new HashSet<Key>();
+	private final HashSet<String> markedSections = new HashSet<String>();
+	private final ArrayList<Key> pendingWarnings = new ArrayList<Key>();
+	private final ArrayList<Key> pendingMarkers = new ArrayList<Key>();
+
+	/**
+	 * Opens the ledger
+	 *
+	 * @param warningFile
+	 *            the log of user warnings
+	 * @param sectionFile
+	 *            the log of invalid section markers
+	 * @param logger
+	 *            where the logs report maintenance such as compaction
+	 * @throws IOException
+	 *             if either log cannot be opened
+	 */
+	public WarningLedger(File warningFile, File sectionFile, RunLogger logger)
+			throws IOException {
+		warningLog = new WarningLog(warningFile, logger);
+		sectionLog = new WarningLog(sectionFile, logger);
+	}
+
+	/**
+	 * Checks whether a user has been warned for a case
+	 *
+	 * @param userName
+	 *            the user
+	 * @param caseName
+	 *            the case
+	 * @return true if the user has been warned for that case
+	 * @throws IOException
+	 *             if the log cannot be read
+	 */
+	public synchronized boolean hasWarning(String userName, String caseName)
+			throws IOException {
+		Key key = key(userName, caseName);
+		if (warnings.contains(key)) {
+			return true;
+		}
+		if (warningLog.contains(userName, caseName)) {
+			warnings.add(key);
+			warnedUsers.add(key.first);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Checks whether a user has been warned for any case
+	 *
+	 * @param userName
+	 *            the user
+	 * @return true if the user has been warned before
+	 * @throws IOException
+	 *             if the log cannot be read
+	 */
+	public synchronized boolean hasWarnedUser(String userName)
+			throws IOException {
+		if (warnedUsers.contains(userName)) {
+			return true;
+		}
+		if (warningLog.containsUser(userName)) {
+			warnedUsers.add(intern(userName));
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Records a warning to a user for a case
+	 *
+	 * @param userName
+	 *            the user
+	 * @param caseName
+	 *            the case
+	 * @return true if the warning is new, false if it was recorded before
+	 * @throws IllegalArgumentException
+	 *             if the user name cannot be logged
+	 * @throws IOException
+	 *             if the log cannot be read
+	 */
+	public synchronized boolean recordWarning(String userName, String caseName)
+			throws IOException {
+		WarningLog.checkEntry(userName, caseName);
+		if (hasWarning(userName, caseName)) {
+			return false;
+		}
+		Key key = key(userName, caseName);
+		warnings.add(key);
+		warnedUsers.add(key.first);
+		pendingWarnings.add(key);
+		return true;
+	}
+
+	/**
+	 * Checks whether an evidence section has been marked as invalid on any
+	 * page
+	 *
+	 * @param sectionName
+	 *            the section header
+	 * @return true if the section has been marked
+	 * @throws IOException
+	 *             if the log cannot be read
+	 */
+	public synchronized boolean isSectionMarked(String sectionName)
+			throws IOException {
+		if (markedSections.contains(sectionName)) {
+			return true;
+		}
+		// older markers live in the warning log
+		if (sectionLog.containsUser(sectionName)
+				|| warningLog.containsUser(sectionName)) {
+			markedSections.add(intern(sectionName));
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Records that an evidence section has been marked as invalid
+	 *
+	 * @param sectionName
+	 *            the section header
+	 * @param pageName
+	 *            the evidence page
+	 * @return true if the marker is new, false if it was recorded before
+	 * @throws IllegalArgumentException
+	 *             if the section name cannot be logged
+	 * @throws IOException
+	 *             if the log cannot be read
+	 */
+	public synchronized boolean recordSectionMarker(String sectionName,
+			String pageName) throws IOException {
+		WarningLog.checkEntry(sectionName, pageName);
+		Key key = key(sectionName, pageName);
+		if (markers.contains(key) || sectionLog.contains(sectionName, pageName)) {
+			markers.add(key);
+			return false;
+		}
+		markers.add(key);
+		markedSections.add(key.first);
+		pendingMarkers.add(key);
+		return true;
+	}
+
+	/**
+	 * Writes everything recorded since the last flush to the logs and forces
+	 * them to disk
+	 *
+	 * @throws IOException
+	 *             if the logs cannot be written
+	 */
+	public synchronized void flush() throws IOException {
+		for (Key key : pendingWarnings) {
+			warningLog.record(key.first, key.second);
+		}
+		pendingWarnings.clear();
+		for (Key key : pendingMarkers) {
+			sectionLog.record(key.first, key.second);
+		}
+		pendingMarkers.clear();
+		warningLog.sync();
+		sectionLog.sync();
+	}
+
+	/**
+	 * Flushes and closes the ledger
+	 */
+	public synchronized void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			warningLog.close();
+			sectionLog.close();
+		}
+	}
+
+	private Key key(String first, String second) {
+		return new Key(intern(first), intern(second));
+	}
+
+	/**
+	 * Shares one copy of each user, case and section name between keys
+	 */
+	private String intern(String name) {
+		String existing = names.get(name);
+		if (existing == null) {
+			names.put(name, name);
+			existing = name;
+		}
+		return existing;
+	}
+
+	/**
+	 * A (user, case) or (section, page) pair
+	 */
+	private static final class Key {
+		private final String first;
+		private final String second;
+		private final int hash;
+
+		private Key(String first, String second) {
+			this.first = first;
+			this.second = second;
+			this.hash = 31 * first.hashCode() + second.hashCode();
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) o;
+			return hash == other.hash && first.equals(other.first)
+					&& second.equals(other.second);
+		}
+	}
+}
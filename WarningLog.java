@@ -0,0 +1,502 @@
+package wiki;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Keeps track of which users have been warned for which cases.
+ *
+ * The log itself is the same plain text file the bot has always used, one
+ * <tt>user&gt;&gt;&gt;case</tt> line per warning, and is only ever appended
+ * to. Lookups go through a memory-mapped, open-addressed hash index kept next
+ * to it (<tt>warningLog.txt.idx</tt>) which maps both (user, case) and user
+ * to the offset of a line in the log, so opening the log doesn't read it and
+ * lookups don't depend on its size. Only lines appended since the index was
+ * last synced are read on startup. If the index is missing or damaged it is
+ * rebuilt from the log.
+ *
+ * Appends are forced to disk in groups (see {@link #sync()}), and the log is
+ * compacted automatically if it contains many duplicate lines.
+ */
+public class WarningLog implements Closeable {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String SEPARATOR = ">>>";
+
+	private static final int MAGIC = 0x4841434C; // "HACL"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 40;
+	private static final int SLOT_SIZE = 16;
+	private static final int MIN_CAPACITY = 1024;
+	private static final double MAX_LOAD = 0.6;
+
+	private static final int STATE_CLEAN = 0;
+	private static final int STATE_REBUILDING = 1;
+
+	private static final int GROUP_COMMIT_SIZE = 32;
+	private static final long GROUP_COMMIT_MILLIS = 1000;
+
+	private final File logFile;
+	private final File indexFile;
+	private final RunLogger logger;
+	private RandomAccessFile log;
+	private FileChannel logChannel;
+	private RandomAccessFile index;
+	private MappedByteBuffer slots;
+
+	private int capacity;
+	private int count;
+	private int duplicates;
+	private long logLength;
+
+	private int pending = 0;
+	private long lastSync = System.currentTimeMillis();
+
+	/**
+	 * Opens the warning log, creating it if it doesn't exist
+	 *
+	 * @param logFile
+	 *            the log file
+	 * @param logger
+	 *            where to report maintenance such as compaction
+	 * @throws IOException
+	 *             if the log or its index cannot be read or written
+	 */
+	public WarningLog(File logFile, RunLogger logger) throws IOException {
+		this.logFile = logFile;
+		this.indexFile = new File(logFile.getPath() + ".idx");
+		this.logger = logger;
+		open();
+
+		// Logs carried over from the old format may repeat themselves a lot
+		if (duplicates > MIN_CAPACITY && duplicates > count) {
+			compact();
+		}
+	}
+
+	/**
+	 * Checks whether a user has been warned for a case
+	 *
+	 * @param userName
+	 *            the user
+	 * @param caseName
+	 *            the case
+	 * @return true if the warning has been logged
+	 * @throws IOException
+	 *             if the log cannot be read
+	 */
+	public synchronized boolean contains(String userName, String caseName)
+			throws IOException {
+		return find(pairHash(userName, caseName), userName, caseName) >= 0;
+	}
+
+	/**
+	 * Checks whether a user has been warned for any case
+	 *
+	 * @param userName
+	 *            the user
+	 * @return true if any warning to the user has been logged
+	 * @throws IOException
+	 *             if the log cannot be read
+	 */
+	public synchronized boolean containsUser(String userName)
+			throws IOException {
+		return find(userHash(userName), userName, null) >= 0;
+	}
+
+	/**
+	 * Logs a warning, unless it has been logged already
+	 *
+	 * @param userName
+	 *            the user being warned
+	 * @param caseName
+	 *            the case the user is being warned for
+	 * @return true if the warning was added, false if it was already there
+	 * @throws IOException
+	 *             if the log cannot be written
+	 */
+	public synchronized boolean record(String userName, String caseName)
+			throws IOException {
+		checkEntry(userName, caseName);
+		if (contains(userName, caseName)) {
+			return false;
+		}
+
+		long offset = logLength;
+		byte[] line = (userName + SEPARATOR + caseName + "\n").getBytes(UTF8);
+		logChannel.write(ByteBuffer.wrap(line), offset);
+		logLength += line.length;
+		addToIndex(offset, userName, caseName);
+
+		pending++;
+		if (pending >= GROUP_COMMIT_SIZE
+				|| System.currentTimeMillis() - lastSync >= GROUP_COMMIT_MILLIS) {
+			sync();
+		}
+		return true;
+	}
+
+	/**
+	 * Checks that a user and case can be written to the log and read back
+	 *
+	 * @param userName
+	 *            the user
+	 * @param caseName
+	 *            the case
+	 * @throws IllegalArgumentException
+	 *             if they can't
+	 */
+	static void checkEntry(String userName, String caseName) {
+		if (userName.contains(SEPARATOR) || userName.contains("\n")
+				|| caseName.contains("\n")) {
+			throw new IllegalArgumentException("Cannot log warning to "
+					+ userName + " for " + caseName);
+		}
+	}
+
+	/**
+	 * Forces all logged warnings to disk. Called automatically every few
+	 * warnings and on close; the log is forced before the index so that the
+	 * index never claims to cover lines that were lost.
+	 *
+	 * @throws IOException
+	 *             if the log cannot be written
+	 */
+	public synchronized void sync() throws IOException {
+		logChannel.force(false);
+		slots.putInt(12, count);
+		slots.putInt(16, duplicates);
+		slots.putLong(20, logLength);
+		slots.force();
+		pending = 0;
+		lastSync = System.currentTimeMillis();
+	}
+
+	/**
+	 * Rewrites the log without duplicate or malformed lines and rebuilds the
+	 * index. Takes time proportional to the size of the log.
+	 *
+	 * @throws IOException
+	 *             if the log cannot be rewritten
+	 */
+	public synchronized void compact() throws IOException {
+		sync();
+		File temp = new File(logFile.getPath() + ".tmp");
+		RandomAccessFile out = new RandomAccessFile(temp, "rw");
+		try {
+			out.setLength(0);
+			FileChannel outChannel = out.getChannel();
+			LineReader reader = new LineReader(0, 65536);
+			long outLength = 0;
+			String line;
+			while ((line = reader.next()) != null) {
+				int split = line.indexOf(SEPARATOR);
+				if (split < 0) {
+					continue;
+				}
+				String userName = line.substring(0, split);
+				String caseName = line.substring(split + SEPARATOR.length());
+				if (reader.offset() != find(pairHash(userName, caseName),
+						userName, caseName)) {
+					continue; // not the first copy
+				}
+				byte[] bytes = (line + "\n").getBytes(UTF8);
+				outChannel.write(ByteBuffer.wrap(bytes), outLength);
+				outLength += bytes.length;
+			}
+			outChannel.force(false);
+		} finally {
+			out.close();
+		}
+
+		closeFiles();
+		if (!temp.renameTo(logFile)) {
+			logFile.delete();
+			if (!temp.renameTo(logFile)) {
+				throw new IOException("Cannot replace warning log "
+						+ logFile.getPath());
+			}
+		}
+		indexFile.delete();
+		open();
+		logger.info("Compacted warning log " + logFile.getPath());
+	}
+
+	/**
+	 * Syncs and closes the log
+	 */
+	public synchronized void close() throws IOException {
+		if (log != null) {
+			sync();
+			closeFiles();
+		}
+	}
+
+	/**
+	 * Opens the log and its index, rebuilding or catching up the index if
+	 * needed
+	 */
+	private void open() throws IOException {
+		log = new RandomAccessFile(logFile, "rw");
+		logChannel = log.getChannel();
+		long fileLength = logChannel.size();
+
+		index = new RandomAccessFile(indexFile, "rw");
+		boolean valid = index.length() >= HEADER_SIZE;
+		if (valid) {
+			map(index.length());
+			capacity = slots.getInt(8);
+			valid = slots.getInt(0) == MAGIC && slots.getInt(4) == VERSION
+					&& slots.getInt(28) == STATE_CLEAN && capacity >= MIN_CAPACITY
+					&& index.length() == HEADER_SIZE + (long) capacity * SLOT_SIZE
+					&& slots.getLong(20) <= fileLength;
+		}
+
+		long from;
+		if (valid) {
+			count = slots.getInt(12);
+			duplicates = slots.getInt(16);
+			from = slots.getLong(20);
+		} else {
+			// Rebuild from scratch, sized for the log
+			slots = null;
+			capacity = MIN_CAPACITY;
+			while (capacity * MAX_LOAD < fileLength / 8) {
+				capacity *= 2;
+			}
+			resize(capacity);
+			count = 0;
+			duplicates = 0;
+			from = 0;
+		}
+
+		// A line without a newline was either written by hand or cut short by
+		// a crash; either way, finish it so the next append starts afresh
+		if (fileLength > 0) {
+			ByteBuffer last = ByteBuffer.allocate(1);
+			logChannel.read(last, fileLength - 1);
+			if (last.get(0) != '\n') {
+				logChannel.write(ByteBuffer.wrap(new byte[] { '\n' }),
+						fileLength);
+				fileLength++;
+			}
+		}
+
+		// Index whatever was appended since the index was last synced
+		logLength = from;
+		if (from < fileLength) {
+			LineReader reader = new LineReader(from, 65536);
+			String line;
+			while ((line = reader.next()) != null) {
+				logLength = reader.end();
+				int split = line.indexOf(SEPARATOR);
+				if (split < 0) {
+					continue;
+				}
+				String userName = line.substring(0, split);
+				String caseName = line.substring(split + SEPARATOR.length());
+				if (find(pairHash(userName, caseName), userName, caseName) >= 0) {
+					duplicates++;
+				} else {
+					addToIndex(reader.offset(), userName, caseName);
+				}
+			}
+		}
+		sync();
+	}
+
+	private void closeFiles() throws IOException {
+		logChannel.close();
+		log.close();
+		index.close();
+		log = null;
+		slots = null;
+	}
+
+	private void map(long size) throws IOException {
+		slots = index.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+	}
+
+	/**
+	 * Grows the index to the given capacity and rehashes it. The index is
+	 * marked as being rebuilt while this happens, so an interruption means a
+	 * rebuild from the log next time rather than a broken index.
+	 */
+	private void resize(int newCapacity) throws IOException {
+		long[] hashes = new long[0];
+		long[] offsets = new long[0];
+		if (slots != null && slots.capacity() >= HEADER_SIZE
+				+ (long) capacity * SLOT_SIZE && slots.getInt(0) == MAGIC) {
+			hashes = new long[capacity];
+			offsets = new long[capacity];
+			for (int i = 0; i < capacity; i++) {
+				hashes[i] = slots.getLong(HEADER_SIZE + i * SLOT_SIZE);
+				offsets[i] = slots.getLong(HEADER_SIZE + i * SLOT_SIZE + 8);
+			}
+			slots.putInt(28, STATE_REBUILDING);
+			slots.force();
+		}
+
+		long size = HEADER_SIZE + (long) newCapacity * SLOT_SIZE;
+		index.setLength(size);
+		map(size);
+		slots.putInt(0, MAGIC);
+		slots.putInt(4, VERSION);
+		slots.putInt(8, newCapacity);
+		slots.putInt(28, STATE_REBUILDING);
+		for (long i = HEADER_SIZE; i < size; i += 8) {
+			slots.putLong((int) i, 0L);
+		}
+		capacity = newCapacity;
+		for (int i = 0; i < hashes.length; i++) {
+			if (hashes[i] != 0) {
+				insert(hashes[i], offsets[i]);
+			}
+		}
+		slots.putInt(28, STATE_CLEAN);
+	}
+
+	private void addToIndex(long offset, String userName, String caseName)
+			throws IOException {
+		if (count + 2 > capacity * MAX_LOAD) {
+			resize(capacity * 2);
+		}
+		insert(pairHash(userName, caseName), offset);
+		count++;
+		long userHash = userHash(userName);
+		if (find(userHash, userName, null) < 0) {
+			insert(userHash, offset);
+			count++;
+		}
+	}
+
+	private void insert(long hash, long offset) {
+		int slot = (int) ((hash & Long.MAX_VALUE) % capacity);
+		while (slots.getLong(HEADER_SIZE + slot * SLOT_SIZE) != 0) {
+			slot = (slot + 1) % capacity;
+		}
+		slots.putLong(HEADER_SIZE + slot * SLOT_SIZE + 8, offset);
+		slots.putLong(HEADER_SIZE + slot * SLOT_SIZE, hash);
+	}
+
+	/**
+	 * Looks up a key in the index. Matching hashes are confirmed against the
+	 * log itself, so collisions cannot produce false positives.
+	 *
+	 * @param hash
+	 *            the hash of the key
+	 * @param userName
+	 *            the user
+	 * @param caseName
+	 *            the case, or null to match any case for the user
+	 * @return the offset of the matching line, or -1
+	 */
+	private long find(long hash, String userName, String caseName)
+			throws IOException {
+		int slot = (int) ((hash & Long.MAX_VALUE) % capacity);
+		long h;
+		while ((h = slots.getLong(HEADER_SIZE + slot * SLOT_SIZE)) != 0) {
+			if (h == hash) {
+				long offset = slots.getLong(HEADER_SIZE + slot * SLOT_SIZE + 8);
+				String line = offset < logLength ? new LineReader(offset, 256)
+						.next() : null;
+				if (line != null) {
+					String prefix = userName + SEPARATOR;
+					if (caseName == null ? line.startsWith(prefix) : line
+							.equals(prefix + caseName)) {
+						return offset;
+					}
+				}
+			}
+			slot = (slot + 1) % capacity;
+		}
+		return -1;
+	}
+
+	private static long pairHash(String userName, String caseName) {
+		return hash("c\u0000" + userName + "\u0000" + caseName);
+	}
+
+	private static long userHash(String userName) {
+		return hash("u\u0000" + userName);
+	}
+
+	/**
+	 * 64-bit FNV-1a over the UTF-16 code units, never zero (zero marks an
+	 * empty slot)
+	 */
+	private static long hash(String key) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < key.length(); i++) {
+			h ^= key.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		return h == 0 ? 1 : h;
+	}
+
+	/**
+	 * Reads complete lines from the log starting at a given offset
+	 */
+	private class LineReader {
+		private final ByteBuffer buffer;
+		private long bufferStart;
+		private long lineStart;
+		private long lineEnd;
+
+		private LineReader(long from, int bufferSize) {
+			buffer = ByteBuffer.allocate(bufferSize);
+			bufferStart = from;
+			lineEnd = from;
+			buffer.limit(0);
+		}
+
+		/**
+		 * @return the next complete line without its newline, or null
+		 */
+		private String next() throws IOException {
+			lineStart = lineEnd;
+			byte[] line = new byte[64];
+			int length = 0;
+			while (true) {
+				if (!buffer.hasRemaining()) {
+					bufferStart += buffer.limit();
+					buffer.clear();
+					if (logChannel.read(buffer, bufferStart) <= 0) {
+						return null; // no newline, so no complete line
+					}
+					buffer.flip();
+				}
+				byte b = buffer.get();
+				if (b == '\n') {
+					lineEnd = lineStart + length + 1;
+					return new String(line, 0, length, UTF8);
+				}
+				if (length == line.length) {
+					byte[] bigger = new byte[length * 2];
+					System.arraycopy(line, 0, bigger, 0, length);
+					line = bigger;
+				}
+				line[length++] = b;
+			}
+		}
+
+		/**
+		 * @return the offset of the line last returned
+		 */
+		private long offset() {
+			return lineStart;
+		}
+
+		/**
+		 * @return the offset just past the line last returned
+		 */
+		private long end() {
+			return lineEnd;
+		}
+	}
+}
@@ -0,0 +1,342 @@
+package wiki;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Scanner;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Records a Wiki's requests and the server's responses, or plays them back,
+ * so that a run can be repeated later on exactly the same input. See
+ * {@link Wiki#setSnapshot(WikiSnapshot)}.
+ *
+ * A snapshot directory holds each distinct response once, gzipped, in a file
+ * named by the SHA-1 of its text, and an index, {@link #INDEX}, listing the
+ * requests in the order they were made: the request's key, its response (or
+ * {@link #NOT_FOUND}), how long it took and what it was. A request's key is
+ * the SHA-1 of its method, URL and body, leaving out tokens and passwords.
+ *
+ * Tokens, passwords and session ids are never written to the snapshot: they
+ * are left out of the index, and in responses (edit tokens, the login token
+ * on Special:Userlogin, the session id in the login result) their values are
+ * replaced with {@link #REDACTED}. Everything else the server said is kept,
+ * so a snapshot holds whatever the account could read.
+ *
+ * When playing back, the n-th time a request is made it gets the response it
+ * got the n-th time it was recorded; after that, the last one again. A
+ * request that was never recorded fails with an IOException. Each response
+ * can be delayed by the time it took when recorded, scaled, to imitate the
+ * network.
+ */
+public class WikiSnapshot implements Closeable {
+	public static final String INDEX = "requests.txt";
+	public static final String NOT_FOUND = "404";
+	public static final String RESPONSE_EXTENSION = ".gz";
+	public static final String REDACTED = "REDACTED";
+
+	// csrftoken="...", lgtoken="...", sessionid="..." in API responses
+	private static final Pattern SECRET_ATTRIBUTE = Pattern
+			.compile("(\\b\\w*(?:token|sessionid)=\")[^\"]*\"",
+					Pattern.CASE_INSENSITIVE);
+	// <input name="wpLoginToken" value="..."> on Special:Userlogin
+	private static final Pattern SECRET_INPUT = Pattern.compile(
+			"(name=\"wp\\w*Token\"\\s+value=\")[^\"]*\"",
+			Pattern.CASE_INSENSITIVE);
+
+	private final File directory;
+	private final boolean replaying;
+	private final double latencyScale;
+
+	// recording
+	private final Writer index;
+
+	// replaying
+	private final HashMap<String, List<RecordedResponse>> recorded = new HashMap<String, List<RecordedResponse>>();
+	private final HashMap<String, Integer> served = new HashMap<String, Integer>();
+	private int requests = 0;
+
+	private WikiSnapshot(File directory, boolean replaying, double latencyScale)
+			throws IOException {
+		this.directory = directory;
+		this.replaying = replaying;
+		this.latencyScale = latencyScale;
+		if (replaying) {
+			index = null;
+			readIndex();
+		} else {
+			if (!directory.isDirectory() && !directory.mkdirs()) {
+				throw new IOException("Cannot create snapshot directory "
+						+ directory);
+			}
+			index = new BufferedWriter(new OutputStreamWriter(
+					new FileOutputStream(new File(directory, INDEX), true),
+					"UTF-8"));
+		}
+	}
+
+	/**
+	 * Starts recording into a directory. Recording into a directory that
+	 * already holds a snapshot adds to it.
+	 *
+	 * @param directory
+	 *            the snapshot directory, created if needed
+	 * @return the snapshot
+	 * @throws IOException
+	 *             if the directory cannot be created or written
+	 */
+	public static WikiSnapshot record(File directory) throws IOException {
+		return new WikiSnapshot(directory, false, 0);
+	}
+
+	/**
+	 * Opens a snapshot for playing back
+	 *
+	 * @param directory
+	 *            the snapshot directory
+	 * @param latencyScale
+	 *            how much of each request's recorded time to wait before
+	 *            answering: 0 to answer at once, 1 for as long as it took
+	 * @return the snapshot
+	 * @throws IOException
+	 *             if the snapshot cannot be read
+	 */
+	public static WikiSnapshot replay(File directory, double latencyScale)
+			throws IOException {
+		return new WikiSnapshot(directory, true, latencyScale);
+	}
+
+	/**
+	 * @return true if playing back, false if recording
+	 */
+	public boolean isReplaying() {
+		return replaying;
+	}
+
+	/**
+	 * @return how many requests have been recorded or answered so far
+	 */
+	public synchronized int getRequestCount() {
+		return requests;
+	}
+
+	/**
+	 * Records a response
+	 *
+	 * @param method
+	 *            GET or POST
+	 * @param url
+	 *            the URL requested
+	 * @param body
+	 *            the body of a POST, or null
+	 * @param response
+	 *            the response, or null if the server said the page was not
+	 *            found
+	 * @param millis
+	 *            how long the request took
+	 * @param caller
+	 *            the Wiki method that made the request
+	 * @throws IOException
+	 *             if the snapshot cannot be written
+	 */
+	public synchronized void record(String method, String url, String body,
+			String response, long millis, String caller) throws IOException {
+		String name = NOT_FOUND;
+		if (response != null) {
+			byte[] bytes = redact(response).getBytes("UTF-8");
+			name = sha1(bytes);
+			File file = new File(directory, name + RESPONSE_EXTENSION);
+			if (!file.exists()) {
+				OutputStream out = new GZIPOutputStream(new FileOutputStream(
+						file));
+				try {
+					out.write(bytes);
+				} finally {
+					out.close();
+				}
+			}
+		}
+		index.write(key(method, url, body) + "\t" + name + "\t" + millis
+				+ "\t" + caller + "\t" + method + " " + url + "\n");
+		index.flush();
+		requests++;
+	}
+
+	/**
+	 * Answers a request from the snapshot
+	 *
+	 * @param method
+	 *            GET or POST
+	 * @param url
+	 *            the URL requested
+	 * @param body
+	 *            the body of a POST, or null
+	 * @return the recorded response
+	 * @throws FileNotFoundException
+	 *             if the server said the page was not found
+	 * @throws IOException
+	 *             if the request was never recorded
+	 */
+	public String replay(String method, String url, String body)
+			throws IOException {
+		RecordedResponse response;
+		synchronized (this) {
+			String key = key(method, url, body);
+			List<RecordedResponse> responses = recorded.get(key);
+			if (responses == null) {
+				throw new IOException("Request is not in snapshot " + directory
+						+ ": " + method + " " + url);
+			}
+			Integer count = served.get(key);
+			int n = count == null ? 0 : count;
+			served.put(key, n + 1);
+			response = responses.get(Math.min(n, responses.size() - 1));
+			requests++;
+		}
+
+		long delay = (long) (response.millis * latencyScale);
+		if (delay > 0) {
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException(
+						"Interrupted while imitating latency");
+			}
+		}
+		if (response.name.equals(NOT_FOUND)) {
+			throw new FileNotFoundException(url);
+		}
+		return readResponse(response.name);
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (index != null) {
+			index.close();
+		}
+	}
+
+	private void readIndex() throws IOException {
+		File file = new File(directory, INDEX);
+		if (!file.exists()) {
+			throw new FileNotFoundException("No snapshot in " + directory);
+		}
+		Scanner in = new Scanner(new FileInputStream(file), "UTF-8");
+		try {
+			while (in.hasNextLine()) {
+				String[] line = in.nextLine().split("\t");
+				if (line.length < 3) {
+					continue;
+				}
+				List<RecordedResponse> responses = recorded.get(line[0]);
+				if (responses == null) {
+					responses = new ArrayList<RecordedResponse>(1);
+					recorded.put(line[0], responses);
+				}
+				responses.add(new RecordedResponse(line[1], Long
+						.parseLong(line[2])));
+			}
+		} catch (NumberFormatException e) {
+			throw new IOException("Snapshot index " + file + " is damaged", e);
+		} finally {
+			in.close();
+		}
+	}
+
+	private String readResponse(String name) throws IOException {
+		InputStream in = new GZIPInputStream(new FileInputStream(new File(
+				directory, name + RESPONSE_EXTENSION)));
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			byte[] chunk = new byte[65536];
+			int read;
+			while ((read = in.read(chunk)) > 0) {
+				bytes.write(chunk, 0, read);
+			}
+			return bytes.toString("UTF-8");
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @return a response with the values of tokens and session ids replaced
+	 */
+	static String redact(String response) {
+		String redacted = SECRET_ATTRIBUTE.matcher(response).replaceAll(
+				"$1" + REDACTED + "\"");
+		return SECRET_INPUT.matcher(redacted).replaceAll(
+				"$1" + REDACTED + "\"");
+	}
+
+	/**
+	 * @return the key of a request, leaving out whatever changes from one
+	 *         session to the next or mustn't be written down
+	 */
+	static String key(String method, String url, String body)
+			throws IOException {
+		StringBuilder request = new StringBuilder(method).append(' ')
+				.append(url);
+		if (body != null) {
+			request.append('\n');
+			boolean first = true;
+			for (String parameter : body.split("&")) {
+				int equals = parameter.indexOf('=');
+				String name = equals < 0 ? parameter : parameter.substring(0,
+						equals);
+				if (name.endsWith("token") || name.equals("lgpassword")) {
+					continue;
+				}
+				if (!first) {
+					request.append('&');
+				}
+				request.append(parameter);
+				first = false;
+			}
+		}
+		return sha1(request.toString().getBytes("UTF-8"));
+	}
+
+	private static String sha1(byte[] bytes) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new AssertionError(e); // every JVM has SHA-1
+		}
+		StringBuilder hex = new StringBuilder(40);
+		for (byte b : digest.digest(bytes)) {
+			hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+			hex.append(Character.forDigit(b & 0xf, 16));
+		}
+		return hex.toString();
+	}
+
+	private static final class RecordedResponse {
+		private final String name;
+		private final long millis;
+
+		private RecordedResponse(String name, long millis) {
+			this.name = name;
+			this.millis = millis;
+		}
+	}
+}
@@ -0,0 +1,101 @@
+package wiki;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks Wiki's parsing of API responses, without a network: fetch() is
+ * answered from canned responses, copied from real api.php output. Run with
+ * <tt>java wiki.WikiTest</tt>; exits with a stack trace on the first failure.
+ */
+public class WikiTest {
+	public static void main(String[] args) throws IOException {
+		pageTexts();
+		pageTextsContinued();
+		baseTimestamps();
+		System.out.println("WikiTest: all passed");
+	}
+
+	private static void pageTexts() throws IOException {
+		CannedWiki wiki = new CannedWiki(
+				"<?xml version=\"1.0\"?><api batchcomplete=\"\"><query>"
+						+ "<normalized><n from=\"Foo_bar\" to=\"Foo bar\" /></normalized>"
+						+ "<pages><page _idx=\"-1\" ns=\"0\" title=\"Missing page\" missing=\"\" />"
+						+ "<page _idx=\"736\" pageid=\"736\" ns=\"0\" title=\"Foo bar\"><revisions>"
+						+ "<rev timestamp=\"2020-01-01T00:00:00Z\" contentformat=\"text/x-wiki\" contentmodel=\"wikitext\" xml:space=\"preserve\">Hello &amp; world\n== Section ==\n&lt;b&gt;bold&lt;/b&gt;</rev>"
+						+ "</revisions></page>"
+						+ "<page _idx=\"737\" pageid=\"737\" ns=\"0\" title=\"Empty\"><revisions>"
+						+ "<rev timestamp=\"2020-01-02T00:00:00Z\" contentformat=\"text/x-wiki\" contentmodel=\"wikitext\" xml:space=\"preserve\" />"
+						+ "</revisions></page></pages></query></api>");
+		String[] texts = wiki.getPageTexts("Foo_bar", "Missing page", "Empty");
+		check("Hello & world\n== Section ==\n<b>bold</b>".equals(texts[0]),
+				"text of a page: " + texts[0]);
+		check(texts[1] == null, "missing page: " + texts[1]);
+		check("".equals(texts[2]), "empty page: " + texts[2]);
+		check("Hello & world\n== Section ==\n<b>bold</b>".equals(wiki
+				.getPageText("Foo bar")), "getPageText");
+	}
+
+	private static void pageTextsContinued() throws IOException {
+		CannedWiki wiki = new CannedWiki(
+				"<?xml version=\"1.0\"?><api><continue rvcontinue=\"738|5012\" continue=\"||\" /><query><pages>"
+						+ "<page _idx=\"737\" pageid=\"737\" ns=\"0\" title=\"Big\"><revisions>"
+						+ "<rev timestamp=\"2020-01-01T00:00:00Z\" xml:space=\"preserve\">big</rev>"
+						+ "</revisions></page>"
+						+ "<page _idx=\"738\" pageid=\"738\" ns=\"0\" title=\"Later\" />"
+						+ "</pages></query></api>",
+				"<?xml version=\"1.0\"?><api batchcomplete=\"\"><query><pages>"
+						+ "<page _idx=\"737\" pageid=\"737\" ns=\"0\" title=\"Big\" />"
+						+ "<page _idx=\"738\" pageid=\"738\" ns=\"0\" title=\"Later\"><revisions>"
+						+ "<rev timestamp=\"2020-01-01T00:00:00Z\" xml:space=\"preserve\">later</rev>"
+						+ "</revisions></page></pages></query></api>");
+		String[] texts = wiki.getPageTexts("Big", "Later");
+		check("big".equals(texts[0]) && "later".equals(texts[1]),
+				"continued texts: " + texts[0] + ", " + texts[1]);
+		check(wiki.urls.size() == 2
+				&& wiki.urls.get(1).contains("&rvcontinue=738%7C5012&continue=%7C%7C"),
+				"continuation request: " + wiki.urls);
+	}
+
+	private static void baseTimestamps() throws IOException {
+		CannedWiki wiki = new CannedWiki(
+				"<?xml version=\"1.0\"?><api batchcomplete=\"\" curtimestamp=\"2020-03-04T05:06:07Z\"><query><pages>"
+						+ "<page _idx=\"736\" pageid=\"736\" ns=\"0\" title=\"Foo\"><revisions>"
+						+ "<rev timestamp=\"2020-01-01T00:00:00Z\" contentformat=\"text/x-wiki\" contentmodel=\"wikitext\" xml:space=\"preserve\">text</rev>"
+						+ "</revisions></page></pages></query></api>");
+		check(wiki.getBaseTimestamp("Foo") == null, "base before reading");
+		wiki.getPageText("Foo");
+		check("2020-01-01T00:00:00Z".equals(wiki.getBaseTimestamp("Foo")),
+				"base timestamp: " + wiki.getBaseTimestamp("Foo"));
+		check(wiki.urls.get(0).contains("&curtimestamp&"),
+				"asks for the server's time: " + wiki.urls.get(0));
+	}
+
+	static void check(boolean ok, String what) {
+		if (!ok) {
+			throw new AssertionError(what);
+		}
+	}
+
+	/**
+	 * Answers each fetch with the next canned response
+	 */
+	static class CannedWiki extends Wiki {
+		private static final long serialVersionUID = 1L;
+
+		final List<String> urls = new ArrayList<String>();
+		private final String[] responses;
+
+		CannedWiki(String... responses) {
+			super("en.wikipedia.org");
+			this.responses = responses;
+		}
+
+		@Override
+		protected String fetch(String url, String caller, boolean write) {
+			urls.add(url);
+			return responses[Math.min(urls.size(), responses.length) - 1];
+		}
+	}
+}
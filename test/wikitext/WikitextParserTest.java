@@ -0,0 +1,47 @@
+package wiki.wikitext;
+
+import java.util.List;
+
+/**
+ * Checks how the parser splits a page into sections. Run with
+ * <tt>java wiki.wikitext.WikitextParserTest</tt>; exits with a stack trace on
+ * the first failure.
+ */
+public class WikitextParserTest {
+	public static void main(String[] args) {
+		headingWithTrailingComment();
+		equalsSignAtStartOfLine();
+		System.out.println("WikitextParserTest: all passed");
+	}
+
+	private static void headingWithTrailingComment() {
+		Wikitext page = new Wikitext("lead\n== A == <!-- x -->\na\n== B ==\nb\n");
+		List<Section> sections = page.getSections();
+		check(sections.size() == 2, "sections: " + sections.size());
+		check(sections.get(0).getLevel() == 2, "level of A: "
+				+ sections.get(0).getLevel());
+		check("A".equals(sections.get(0).getTitle()), "title of A: "
+				+ sections.get(0).getTitle());
+		check(sections.get(0).getSource().equals("== A == <!-- x -->\na\n"),
+				"A ends where B starts: " + sections.get(0).getSource());
+		check("B".equals(page.getSection(2).getTitle()), "section 2: "
+				+ page.getSection(2).getTitle());
+	}
+
+	private static void equalsSignAtStartOfLine() {
+		Wikitext page = new Wikitext("== A ==\n=x\n{{t\n|a=b\n}}\n== B ==\nb\n");
+		List<Section> sections = page.getSections();
+		check(sections.size() == 2, "sections: " + sections.size());
+		check("A".equals(sections.get(0).getTitle())
+				&& "B".equals(sections.get(1).getTitle()), "titles: "
+				+ sections.get(0).getTitle() + ", " + sections.get(1).getTitle());
+		check(sections.get(0).getSource().contains("=x\n"),
+				"=x is part of A: " + sections.get(0).getSource());
+	}
+
+	private static void check(boolean ok, String what) {
+		if (!ok) {
+			throw new AssertionError(what);
+		}
+	}
+}
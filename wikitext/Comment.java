@@ -0,0 +1,21 @@
+package wiki.wikitext;
+
+/**
+ * An HTML comment, <tt>&lt;!-- ... --&gt;</tt>. A comment that is never
+ * closed runs to the end of the page.
+ */
+public class Comment extends Node {
+	private final String content;
+
+	Comment(Wikitext page, int start, int end, String content) {
+		super(page, start, end);
+		this.content = content;
+	}
+
+	/**
+	 * @return the text between the comment markers
+	 */
+	public String getContent() {
+		return content;
+	}
+}
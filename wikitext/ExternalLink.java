@@ -0,0 +1,40 @@
+package wiki.wikitext;
+
+/**
+ * An external link, either in brackets, <tt>[http://example.com label]</tt>,
+ * or a bare URL in the text
+ */
+public class ExternalLink extends Node {
+	private final String url;
+	private final String label;
+	private final boolean bracketed;
+
+	ExternalLink(Wikitext page, int start, int end, String url, String label,
+			boolean bracketed) {
+		super(page, start, end);
+		this.url = url;
+		this.label = label;
+		this.bracketed = bracketed;
+	}
+
+	/**
+	 * @return the URL
+	 */
+	public String getUrl() {
+		return url;
+	}
+
+	/**
+	 * @return the label of a bracketed link, or null if there is none
+	 */
+	public String getLabel() {
+		return label;
+	}
+
+	/**
+	 * @return false if this is a bare URL
+	 */
+	public boolean isBracketed() {
+		return bracketed;
+	}
+}
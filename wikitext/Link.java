@@ -0,0 +1,36 @@
+package wiki.wikitext;
+
+/**
+ * An internal link, <tt>[[target]]</tt> or <tt>[[target|label]]</tt>
+ */
+public class Link extends Node {
+	private final String target;
+	private final String label;
+
+	Link(Wikitext page, int start, int end, String target, String label) {
+		super(page, start, end);
+		this.target = target;
+		this.label = label;
+	}
+
+	/**
+	 * @return the page linked to, trimmed
+	 */
+	public String getTarget() {
+		return target;
+	}
+
+	/**
+	 * @return the text after the first pipe, or null if there is none
+	 */
+	public String getLabel() {
+		return label;
+	}
+
+	/**
+	 * @return the text the link displays as (ignoring the pipe trick)
+	 */
+	public String getDisplayText() {
+		return label == null ? target : label;
+	}
+}
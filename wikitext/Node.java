@@ -0,0 +1,79 @@
+package wiki.wikitext;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A piece of a parsed {@link Wikitext} page. Nodes only remember where they
+ * are in the page; their text is read from the page when asked for.
+ */
+public abstract class Node {
+	final Wikitext page;
+	final int start, end;
+
+	Node(Wikitext page, int start, int end) {
+		this.page = page;
+		this.start = start;
+		this.end = end;
+	}
+
+	/**
+	 * @return the page this node is part of
+	 */
+	public Wikitext getPage() {
+		return page;
+	}
+
+	/**
+	 * @return the offset of the first character of this node in the page
+	 */
+	public int getStart() {
+		return start;
+	}
+
+	/**
+	 * @return the offset just after the last character of this node
+	 */
+	public int getEnd() {
+		return end;
+	}
+
+	/**
+	 * @return the wikitext of this node, exactly as it appears on the page
+	 */
+	public String getSource() {
+		return page.getText().substring(start, end);
+	}
+
+	/**
+	 * @param other
+	 *            another node of the same page
+	 * @return true if the other node lies entirely inside this one
+	 */
+	public boolean contains(Node other) {
+		return other.page == page && start <= other.start && other.end <= end;
+	}
+
+	/**
+	 * Picks out the nodes that lie inside this one
+	 * 
+	 * @param nodes
+	 *            nodes of the same page, e.g. from
+	 *            {@link Wikitext#getTemplates(String...)}
+	 * @return those inside this node, in the same order
+	 */
+	public <T extends Node> List<T> within(List<T> nodes) {
+		ArrayList<T> inside = new ArrayList<T>();
+		for (T node : nodes) {
+			if (contains(node)) {
+				inside.add(node);
+			}
+		}
+		return inside;
+	}
+
+	@Override
+	public String toString() {
+		return getSource();
+	}
+}
@@ -0,0 +1,51 @@
+package wiki.wikitext;
+
+/**
+ * A section of a page, from its heading up to the next heading of the same or
+ * a higher level. Sections are numbered from 1 in page order, the way
+ * MediaWiki numbers them for section editing.
+ */
+public class Section extends Node {
+	private final int number;
+	private final int level;
+	private final String title;
+	private final int contentStart;
+
+	Section(Wikitext page, int start, int end, int number, int level,
+			String title, int contentStart) {
+		super(page, start, end);
+		this.number = number;
+		this.level = level;
+		this.title = title;
+		this.contentStart = contentStart;
+	}
+
+	/**
+	 * @return the section number
+	 */
+	public int getNumber() {
+		return number;
+	}
+
+	/**
+	 * @return the heading level, 2 for <tt>== Heading ==</tt>
+	 */
+	public int getLevel() {
+		return level;
+	}
+
+	/**
+	 * @return the heading, without the equals signs and trimmed
+	 */
+	public String getTitle() {
+		return title;
+	}
+
+	/**
+	 * @return the text of the section after the heading line, including any
+	 *         subsections
+	 */
+	public String getContent() {
+		return page.getText().substring(contentStart, end);
+	}
+}
@@ -0,0 +1,50 @@
+package wiki.wikitext;
+
+/**
+ * An HTML or extension tag, such as <tt>&lt;small&gt;</tt>,
+ * <tt>&lt;/ref&gt;</tt> or <tt>&lt;br /&gt;</tt>. Opening and closing tags
+ * are separate nodes.
+ */
+public class Tag extends Node {
+	private final String name;
+	private final String attributes;
+	private final boolean closing;
+	private final boolean selfClosing;
+
+	Tag(Wikitext page, int start, int end, String name, String attributes,
+			boolean closing, boolean selfClosing) {
+		super(page, start, end);
+		this.name = name;
+		this.attributes = attributes;
+		this.closing = closing;
+		this.selfClosing = selfClosing;
+	}
+
+	/**
+	 * @return the tag name, in lower case
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the attributes, as written, or "" if there are none
+	 */
+	public String getAttributes() {
+		return attributes;
+	}
+
+	/**
+	 * @return true for a closing tag such as <tt>&lt;/ref&gt;</tt>
+	 */
+	public boolean isClosing() {
+		return closing;
+	}
+
+	/**
+	 * @return true for a tag such as <tt>&lt;br /&gt;</tt>
+	 */
+	public boolean isSelfClosing() {
+		return selfClosing;
+	}
+}
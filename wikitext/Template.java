@@ -0,0 +1,71 @@
+package wiki.wikitext;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A template call, <tt>{{name|param|key=value}}</tt>. Unnamed parameters are
+ * numbered from 1, as MediaWiki does. Named parameters have their keys and
+ * values trimmed; unnamed ones are left as written.
+ */
+public class Template extends Node {
+	private final String name;
+	private final Map<String, String> params;
+
+	Template(Wikitext page, int start, int end, String name,
+			LinkedHashMap<String, String> params) {
+		super(page, start, end);
+		this.name = name;
+		this.params = Collections.unmodifiableMap(params);
+	}
+
+	/**
+	 * @return the template name, as written
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Checks the name of this template, ignoring the things MediaWiki
+	 * ignores: a "Template:" prefix, the case of the first letter, and
+	 * underscores in place of spaces
+	 * 
+	 * @param other
+	 *            a template name
+	 * @return true if this is a call to that template
+	 */
+	public boolean isNamed(String other) {
+		return normalizeName(name).equals(normalizeName(other));
+	}
+
+	/**
+	 * @param key
+	 *            a parameter name or number
+	 * @return its value, or null if it wasn't given
+	 */
+	public String getParam(String key) {
+		return params.get(key);
+	}
+
+	/**
+	 * @return all the parameters, in the order they were given
+	 */
+	public Map<String, String> getParams() {
+		return params;
+	}
+
+	static String normalizeName(String name) {
+		String normalized = name.replace('_', ' ').trim()
+				.replaceAll("\\s+", " ");
+		if (normalized.regionMatches(true, 0, "Template:", 0, 9)) {
+			normalized = normalized.substring(9).trim();
+		}
+		if (normalized.isEmpty()) {
+			return normalized;
+		}
+		return Character.toUpperCase(normalized.charAt(0))
+				+ normalized.substring(1);
+	}
+}
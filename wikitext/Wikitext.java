@@ -0,0 +1,167 @@
+package wiki.wikitext;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A wikitext page and the things found in it: sections, templates, internal
+ * and external links, HTML tags and comments. The page is scanned once, the
+ * first time any of them is asked for, and the results are kept. Nothing is
+ * expanded; the nodes describe the text as written.
+ * 
+ * Instances are safe to share between threads and modules. See
+ * {@link WikitextCache} for keeping one per page revision.
+ */
+public final class Wikitext {
+	private final String text;
+
+	private volatile boolean parsed = false;
+	private List<Template> templates;
+	private List<Link> links;
+	private List<ExternalLink> externalLinks;
+	private List<Tag> tags;
+	private List<Comment> comments;
+	private List<Section> sections;
+
+	/**
+	 * @param text
+	 *            the wikitext of the page
+	 */
+	public Wikitext(String text) {
+		if (text == null) {
+			throw new IllegalArgumentException("Text must not be null");
+		}
+		this.text = text;
+	}
+
+	/**
+	 * @return the wikitext of the page
+	 */
+	public String getText() {
+		return text;
+	}
+
+	/**
+	 * @return every template call on the page, including those nested inside
+	 *         others, in the order they start
+	 */
+	public List<Template> getTemplates() {
+		parse();
+		return templates;
+	}
+
+	/**
+	 * @param names
+	 *            template names, compared as in {@link Template#isNamed}
+	 * @return the calls to any of those templates, in page order
+	 */
+	public List<Template> getTemplates(String... names) {
+		ArrayList<Template> found = new ArrayList<Template>();
+		for (Template template : getTemplates()) {
+			for (String name : names) {
+				if (template.isNamed(name)) {
+					found.add(template);
+					break;
+				}
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * @return every internal link, in the order they start
+	 */
+	public List<Link> getLinks() {
+		parse();
+		return links;
+	}
+
+	/**
+	 * @return every external link, bracketed or bare, in page order
+	 */
+	public List<ExternalLink> getExternalLinks() {
+		parse();
+		return externalLinks;
+	}
+
+	/**
+	 * @return every opening, closing and self-closing tag, in page order
+	 */
+	public List<Tag> getTags() {
+		parse();
+		return tags;
+	}
+
+	/**
+	 * @param name
+	 *            a tag name, in any case
+	 * @return the tags with that name, in page order
+	 */
+	public List<Tag> getTags(String name) {
+		ArrayList<Tag> found = new ArrayList<Tag>();
+		for (Tag tag : getTags()) {
+			if (tag.getName().equalsIgnoreCase(name)) {
+				found.add(tag);
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * @return every comment, in page order
+	 */
+	public List<Comment> getComments() {
+		parse();
+		return comments;
+	}
+
+	/**
+	 * @return every section, in page order; section 1 is first
+	 */
+	public List<Section> getSections() {
+		parse();
+		return sections;
+	}
+
+	/**
+	 * @param number
+	 *            a section number, from 1
+	 * @return that section, or null if the page doesn't have it
+	 */
+	public Section getSection(int number) {
+		List<Section> all = getSections();
+		if (number < 1 || number > all.size()) {
+			return null;
+		}
+		return all.get(number - 1);
+	}
+
+	/**
+	 * @return the text before the first heading
+	 */
+	public String getLead() {
+		List<Section> all = getSections();
+		return all.isEmpty() ? text : text.substring(0, all.get(0).getStart());
+	}
+
+	private void parse() {
+		if (parsed) {
+			return;
+		}
+		synchronized (this) {
+			if (parsed) {
+				return;
+			}
+			WikitextParser parser = new WikitextParser(this);
+			parser.run();
+			templates = Collections.unmodifiableList(parser.templates);
+			links = Collections.unmodifiableList(parser.links);
+			externalLinks = Collections.unmodifiableList(parser.externalLinks);
+			tags = Collections.unmodifiableList(parser.tags);
+			comments = Collections.unmodifiableList(parser.comments);
+			sections = Collections.unmodifiableList(parser.sections);
+			parsed = true;
+		}
+	}
+}
@@ -0,0 +1,104 @@
+package wiki.wikitext;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the parsed text of recently used pages, one revision per page, so
+ * that each revision is only parsed once however many times it is asked for.
+ * When the cache is full the page used longest ago is dropped.
+ */
+public class WikitextCache {
+	private final LinkedHashMap<String, CachedPage> pages;
+
+	/**
+	 * @param capacity
+	 *            the most pages to keep
+	 */
+	public WikitextCache(final int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Capacity must be positive");
+		}
+		pages = new LinkedHashMap<String, CachedPage>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CachedPage> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * @param title
+	 *            the page
+	 * @param revision
+	 *            the revision wanted
+	 * @return the parsed text of that revision, or null if it isn't cached
+	 */
+	public synchronized Wikitext get(String title, long revision) {
+		CachedPage entry = pages.get(title);
+		if (entry == null || entry.revision != revision) {
+			return null;
+		}
+		return entry.text;
+	}
+
+	/**
+	 * Gets the parsed text of a revision, caching it if it is new. Text with
+	 * an unknown revision (0) is never cached.
+	 * 
+	 * @param title
+	 *            the page
+	 * @param revision
+	 *            the revision the text is from
+	 * @param text
+	 *            the wikitext of that revision
+	 * @return the parsed text
+	 */
+	public synchronized Wikitext put(String title, long revision, String text) {
+		Wikitext cached = get(title, revision);
+		if (cached != null) {
+			return cached;
+		}
+		Wikitext parsed = new Wikitext(text);
+		if (revision != 0) {
+			pages.put(title, new CachedPage(revision, parsed));
+		}
+		return parsed;
+	}
+
+	/**
+	 * Drops a page from the cache, e.g. after editing it
+	 * 
+	 * @param title
+	 *            the page
+	 */
+	public synchronized void remove(String title) {
+		pages.remove(title);
+	}
+
+	/**
+	 * Empties the cache
+	 */
+	public synchronized void clear() {
+		pages.clear();
+	}
+
+	/**
+	 * @return the number of pages cached
+	 */
+	public synchronized int size() {
+		return pages.size();
+	}
+
+	private static final class CachedPage {
+		private final long revision;
+		private final Wikitext text;
+
+		private CachedPage(long revision, Wikitext text) {
+			this.revision = revision;
+			this.text = text;
+		}
+	}
+}
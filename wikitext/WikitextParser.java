@@ -0,0 +1,386 @@
+package wiki.wikitext;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+
+/**
+ * Scans a page once from start to finish and collects its nodes. Templates
+ * and internal links may be nested; a pipe or equals sign only belongs to the
+ * innermost one that is open. Anything left open at the end of the page is
+ * treated as plain text, as MediaWiki does.
+ */
+class WikitextParser {
+	private static final int TEMPLATE = 0, LINK = 1, ARGUMENT = 2;
+
+	/** Tags whose content is not wikitext */
+	private static final String[] RAW_TAGS = { "nowiki", "pre", "math",
+			"source", "syntaxhighlight" };
+	private static final String[] BRACKET_SCHEMES = { "http://", "https://",
+			"ftp://", "mailto:", "//" };
+	private static final String[] BARE_SCHEMES = { "http://", "https://",
+			"ftp://" };
+
+	private static final Comparator<Node> BY_START = new Comparator<Node>() {
+		@Override
+		public int compare(Node a, Node b) {
+			return a.start < b.start ? -1 : (a.start == b.start ? 0 : 1);
+		}
+	};
+
+	final ArrayList<Template> templates = new ArrayList<Template>();
+	final ArrayList<Link> links = new ArrayList<Link>();
+	final ArrayList<ExternalLink> externalLinks = new ArrayList<ExternalLink>();
+	final ArrayList<Tag> tags = new ArrayList<Tag>();
+	final ArrayList<Comment> comments = new ArrayList<Comment>();
+	final ArrayList<Section> sections = new ArrayList<Section>();
+
+	private final Wikitext page;
+	private final String text;
+	private final ArrayList<Frame> frames = new ArrayList<Frame>();
+	private final ArrayList<int[]> headings = new ArrayList<int[]>();
+	private final ArrayList<String> headingTitles = new ArrayList<String>();
+
+	WikitextParser(Wikitext page) {
+		this.page = page;
+		this.text = page.getText();
+	}
+
+	void run() {
+		int length = text.length();
+		int position = 0;
+		while (position < length) {
+			char c = text.charAt(position);
+			if (c == '=' && (position == 0 || text.charAt(position - 1) == '\n')) {
+				heading(position);
+			}
+
+			if (c == '<') {
+				position = angleBracket(position);
+			} else if (c == '{' && text.startsWith("{{{", position)) {
+				frames.add(new Frame(ARGUMENT, position));
+				position += 3;
+			} else if (c == '{' && text.startsWith("{{", position)) {
+				frames.add(new Frame(TEMPLATE, position));
+				position += 2;
+			} else if (c == '}' && text.startsWith("}}", position)) {
+				position = closeBraces(position);
+			} else if (c == '[' && text.startsWith("[[", position)) {
+				frames.add(new Frame(LINK, position));
+				position += 2;
+			} else if (c == ']' && text.startsWith("]]", position)
+					&& top(LINK)) {
+				closeLink(position);
+				position += 2;
+			} else if (c == '[') {
+				position = bracketedLink(position);
+			} else if (c == '|' && !frames.isEmpty()) {
+				frames.get(frames.size() - 1).split(position);
+				position++;
+			} else if (c == '=' && !frames.isEmpty()) {
+				frames.get(frames.size() - 1).equals(position);
+				position++;
+			} else {
+				position = bareLink(position);
+			}
+		}
+
+		Collections.sort(templates, BY_START);
+		Collections.sort(links, BY_START);
+		buildSections();
+	}
+
+	/**
+	 * Handles a comment or a tag starting at the given position
+	 *
+	 * @return where to carry on from
+	 */
+	private int angleBracket(int position) {
+		if (text.startsWith("<!--", position)) {
+			int close = text.indexOf("-->", position + 4);
+			int end = close < 0 ? text.length() : close + 3;
+			comments.add(new Comment(page, position, end, text.substring(
+					position + 4, close < 0 ? text.length() : close)));
+			return end;
+		}
+
+		int nameStart = position + 1;
+		boolean closing = nameStart < text.length()
+				&& text.charAt(nameStart) == '/';
+		if (closing) {
+			nameStart++;
+		}
+		int nameEnd = nameStart;
+		while (nameEnd < text.length()
+				&& Character.isLetterOrDigit(text.charAt(nameEnd))) {
+			nameEnd++;
+		}
+		if (nameEnd == nameStart || !Character.isLetter(text.charAt(nameStart))) {
+			return position + 1;
+		}
+		int close = nameEnd;
+		while (close < text.length() && text.charAt(close) != '>') {
+			char c = text.charAt(close);
+			if (c == '<' || c == '\n') {
+				return position + 1;
+			}
+			close++;
+		}
+		if (close == text.length()) {
+			return position + 1;
+		}
+
+		boolean selfClosing = text.charAt(close - 1) == '/';
+		String name = text.substring(nameStart, nameEnd).toLowerCase();
+		String attributes = text.substring(nameEnd,
+				selfClosing ? close - 1 : close).trim();
+		tags.add(new Tag(page, position, close + 1, name, attributes, closing,
+				selfClosing));
+
+		if (!closing && !selfClosing) {
+			for (String raw : RAW_TAGS) {
+				if (raw.equals(name)) {
+					// skip to the closing tag, which is then read as usual
+					int end = indexOfIgnoreCase("</" + name, close + 1);
+					return end < 0 ? text.length() : end;
+				}
+			}
+		}
+		return close + 1;
+	}
+
+	/**
+	 * Handles "}}" at the given position, closing a template or argument if
+	 * one is open
+	 *
+	 * @return where to carry on from
+	 */
+	private int closeBraces(int position) {
+		if (top(ARGUMENT) && text.startsWith("}}}", position)) {
+			frames.remove(frames.size() - 1);
+			return position + 3;
+		}
+		// links left open inside a template end with it
+		int i = frames.size() - 1;
+		while (i >= 0 && frames.get(i).type == LINK) {
+			i--;
+		}
+		if (i < 0 || frames.get(i).type != TEMPLATE) {
+			return position + 1;
+		}
+		while (frames.size() > i + 1) {
+			frames.remove(frames.size() - 1);
+		}
+		Frame frame = frames.remove(i);
+		frame.split(position);
+
+		int nameEnd = frame.bounds.get(1);
+		String name = text.substring(frame.start + 2, nameEnd).trim();
+		LinkedHashMap<String, String> params = new LinkedHashMap<String, String>();
+		int unnamed = 1;
+		for (int part = 1; part < frame.bounds.size() - 1; part++) {
+			int from = frame.bounds.get(part) + 1;
+			int to = frame.bounds.get(part + 1);
+			int equals = frame.equals.get(part);
+			if (equals < 0) {
+				params.put(String.valueOf(unnamed++), text.substring(from, to));
+			} else {
+				params.put(text.substring(from, equals).trim(), text
+						.substring(equals + 1, to).trim());
+			}
+		}
+		templates.add(new Template(page, frame.start, position + 2, name,
+				params));
+		return position + 2;
+	}
+
+	private void closeLink(int position) {
+		Frame frame = frames.remove(frames.size() - 1);
+		int pipe = frame.bounds.size() > 1 ? frame.bounds.get(1) : position;
+		String target = text.substring(frame.start + 2, pipe);
+		if (target.indexOf('\n') >= 0) {
+			return;
+		}
+		String label = pipe < position ? text.substring(pipe + 1, position)
+				: null;
+		links.add(new Link(page, frame.start, position + 2, target.trim(),
+				label));
+	}
+
+	/**
+	 * Handles a single "[" at the given position, which may start an external
+	 * link. Only the URL is skipped; the label is read as usual, since it may
+	 * hold templates, and a pipe in it still ends a template parameter.
+	 *
+	 * @return where to carry on from
+	 */
+	private int bracketedLink(int position) {
+		int urlStart = position + 1;
+		if (!startsWithScheme(urlStart, BRACKET_SCHEMES)) {
+			return position + 1;
+		}
+		int close = position;
+		while (++close < text.length()) {
+			char c = text.charAt(close);
+			if (c == ']' || c == '\n') {
+				break;
+			}
+		}
+		if (close == text.length() || text.charAt(close) != ']') {
+			return bareLink(urlStart);
+		}
+
+		int urlEnd = urlStart;
+		while (urlEnd < close && !Character.isWhitespace(text.charAt(urlEnd))) {
+			urlEnd++;
+		}
+		String label = text.substring(urlEnd, close).trim();
+		externalLinks.add(new ExternalLink(page, position, close + 1, text
+				.substring(urlStart, urlEnd), label.isEmpty() ? null : label,
+				true));
+		return urlEnd;
+	}
+
+	/**
+	 * Checks for a bare URL at the given position
+	 *
+	 * @return where to carry on from
+	 */
+	private int bareLink(int position) {
+		if (position > 0
+				&& Character.isLetterOrDigit(text.charAt(position - 1))
+				|| !startsWithScheme(position, BARE_SCHEMES)) {
+			return position + 1;
+		}
+		int end = position;
+		while (end < text.length()) {
+			char c = text.charAt(end);
+			if (Character.isWhitespace(c) || "[]<>\"{}|".indexOf(c) >= 0) {
+				break;
+			}
+			end++;
+		}
+		// trailing punctuation is not part of the URL
+		while (end > position && ".,;:!?)'".indexOf(text.charAt(end - 1)) >= 0) {
+			end--;
+		}
+		String url = text.substring(position, end);
+		if (url.endsWith("//")) {
+			return position + 1;
+		}
+		externalLinks.add(new ExternalLink(page, position, end, url, null,
+				false));
+		return end;
+	}
+
+	/**
+	 * Records a heading if the line starting at the given position is one.
+	 * As in MediaWiki, comments and whitespace after the closing equals signs
+	 * don't stop a line being a heading, and a line needs equals signs at both
+	 * ends to be one.
+	 */
+	private void heading(int position) {
+		int lineEnd = text.indexOf('\n', position);
+		if (lineEnd < 0) {
+			lineEnd = text.length();
+		}
+		int end = lineEnd;
+		while (true) {
+			while (end > position
+					&& Character.isWhitespace(text.charAt(end - 1))) {
+				end--;
+			}
+			if (end - position < 7 || !text.startsWith("-->", end - 3)) {
+				break;
+			}
+			int comment = text.lastIndexOf("<!--", end - 4);
+			if (comment < position) {
+				break;
+			}
+			end = comment;
+		}
+		int leading = 0, trailing = 0;
+		while (position + leading < end && text.charAt(position + leading) == '=') {
+			leading++;
+		}
+		while (end - trailing > position && text.charAt(end - trailing - 1) == '=') {
+			trailing++;
+		}
+		int level = Math.min(6, Math.min(leading, trailing));
+		if (level < 1 || end - position <= 2 * level) {
+			return; // not a heading, or nothing between the equals signs
+		}
+		headings.add(new int[] { position, lineEnd, level });
+		headingTitles.add(text.substring(position + level, end - level).trim());
+	}
+
+	private void buildSections() {
+		for (int i = 0; i < headings.size(); i++) {
+			int[] heading = headings.get(i);
+			int end = text.length();
+			for (int j = i + 1; j < headings.size(); j++) {
+				if (headings.get(j)[2] <= heading[2]) {
+					end = headings.get(j)[0];
+					break;
+				}
+			}
+			int contentStart = Math.min(heading[1] + 1, text.length());
+			sections.add(new Section(page, heading[0], end, i + 1, heading[2],
+					headingTitles.get(i), Math.min(contentStart, end)));
+		}
+	}
+
+	private boolean top(int type) {
+		return !frames.isEmpty() && frames.get(frames.size() - 1).type == type;
+	}
+
+	private boolean startsWithScheme(int position, String[] schemes) {
+		for (String scheme : schemes) {
+			if (text.regionMatches(true, position, scheme, 0, scheme.length())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private int indexOfIgnoreCase(String target, int from) {
+		for (int i = from; i <= text.length() - target.length(); i++) {
+			if (text.regionMatches(true, i, target, 0, target.length())) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * A template, argument or link that has been opened but not yet closed
+	 */
+	private static final class Frame {
+		private final int type;
+		private final int start;
+		/** where each part begins: the opening brackets, then each pipe */
+		private final ArrayList<Integer> bounds = new ArrayList<Integer>();
+		/** the first top-level equals sign in each part, or -1 */
+		private final ArrayList<Integer> equals = new ArrayList<Integer>();
+
+		private Frame(int type, int start) {
+			this.type = type;
+			this.start = start;
+			bounds.add(start);
+			equals.add(-1);
+		}
+
+		private void split(int position) {
+			bounds.add(position);
+			equals.add(-1);
+		}
+
+		private void equals(int position) {
+			int part = equals.size() - 1;
+			if (part > 0 && equals.get(part) < 0) {
+				equals.set(part, position);
+			}
+		}
+	}
+}